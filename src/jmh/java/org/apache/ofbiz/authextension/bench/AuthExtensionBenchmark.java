@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension.bench;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ofbiz.authextension.AuthExtensionServices;
+import org.apache.ofbiz.authextension.UserInfoCache;
+import org.apache.ofbiz.base.crypto.HashCrypt;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.common.login.LoginServices;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the profile services against a {@link StandInDelegator}
+ *
+ * Each trial generates <code>users</code> users spread over <code>organizations</code> employers, each user
+ * with a person, a primary email and an employment, and each employer with <code>attributes</code>
+ * PartyAttributes. Every entity find waits <code>queryLatencyMicros</code>. The user info cache is cleared
+ * at the start of each trial and users are picked at random, so the hit ratio follows from the number of
+ * users and <code>userinfo.cache.maxSize</code>. The component reads its settings from the benchmark
+ * <code>authextension.properties</code> and <code>security.properties</code>, which shadow the deployed ones.
+ * validateUserCredentials runs in both <code>verificationMode</code>s: fast, and strict through
+ * LoginServices.userLogin, which reads the UserLogin rows and stores them back (dropped by the stand-in).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AuthExtensionBenchmark {
+
+    private static final String PASSWORD = "bench-password";
+    private static final String[] FIRST_NAMES = {"Anna", "Bruno", "Chloe", "David", "Elena", "Farid", "Grace", "Hugo"};
+    private static final String[] LAST_NAMES = {"Martin", "Bernard", "Dubois", "Thomas", "Robert", "Richard", "Petit"};
+
+    @Param({"10000", "100000"})
+    public int users;
+
+    @Param({"100"})
+    public int organizations;
+
+    @Param({"5"})
+    public int attributes;
+
+    @Param({"0", "250"})
+    public long queryLatencyMicros;
+
+    private DispatchContext dctx;
+
+    /**
+     * Credential verification mode of validateUserCredentials. CredentialVerifier reads it once, which works
+     * because JMH runs each parameter combination in its own fork and this state is set up before the first call.
+     */
+    @State(Scope.Benchmark)
+    public static class Verification {
+        @Param({"fast", "strict"})
+        public String verificationMode;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            UtilProperties.getProperties("authextension").setProperty("credentials.verification.mode", verificationMode);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StandInDelegator standIn = new StandInDelegator("default", queryLatencyMicros);
+        Timestamp since = Timestamp.valueOf("2020-01-01 00:00:00");
+        Timestamp stamp = new Timestamp(System.currentTimeMillis());
+        // Hashed once, all users share the password
+        String currentPassword = HashCrypt.cryptUTF8(LoginServices.getHashType(), null, PASSWORD);
+
+        for (int i = 0; i < organizations; i++) {
+            String partyId = organizationPartyId(i);
+            standIn.addRow("Party", UtilMisc.toMap("partyId", partyId, "partyTypeId", "PARTY_GROUP", "lastUpdatedStamp", stamp));
+            standIn.addRow("PartyGroup", UtilMisc.toMap("partyId", partyId, "groupName", "Organization " + i,
+                    "lastUpdatedStamp", stamp));
+            for (int j = 0; j < attributes; j++) {
+                standIn.addRow("PartyAttribute", UtilMisc.toMap("partyId", partyId, "attrName", "attribute" + j,
+                        "attrValue", "value" + j, "lastUpdatedStamp", stamp));
+            }
+        }
+        for (int i = 0; i < users; i++) {
+            String partyId = String.format("BP%08d", i);
+            String organizationPartyId = organizationPartyId(i % organizations);
+            Map<String, Object> row = UtilMisc.toMap("userLoginId", userLoginId(i), "partyId", partyId, "enabled", "Y",
+                    "hasLoggedOut", "N", "currentPassword", currentPassword, "requirePasswordChange", "N");
+            row.put("successiveFailedLogins", 0L);
+            row.put("personPartyId", partyId);
+            row.put("firstName", FIRST_NAMES[i % FIRST_NAMES.length]);
+            row.put("lastName", LAST_NAMES[i % LAST_NAMES.length]);
+            row.put("contactMechId", String.format("BCM%08d", i));
+            row.put("contactMechPurposeTypeId", "PRIMARY_EMAIL");
+            row.put("emailFromDate", since);
+            row.put("emailContactMechId", row.get("contactMechId"));
+            row.put("contactMechTypeId", "EMAIL_ADDRESS");
+            row.put("email", userLoginId(i) + "@example.com");
+            row.put("partyRelationshipTypeId", "EMPLOYMENT");
+            row.put("organizationPartyId", organizationPartyId);
+            row.put("employmentFromDate", since);
+            row.put("groupPartyId", organizationPartyId);
+            row.put("organizationName", "Organization " + (i % organizations));
+            for (String stampField : new String[] {"userLoginStamp", "personStamp", "emailPurposeStamp", "emailStamp",
+                    "employmentStamp", "organizationStamp"}) {
+                row.put(stampField, stamp);
+            }
+            standIn.addRow("AuthExtUserProfile", row);
+            standIn.addRow("UserLogin", UtilMisc.toMap("userLoginId", userLoginId(i), "partyId", partyId, "enabled", "Y",
+                    "hasLoggedOut", "N", "currentPassword", currentPassword, "requirePasswordChange", "N",
+                    "successiveFailedLogins", 0L, "lastUpdatedStamp", stamp));
+        }
+
+        dctx = dispatchContext(standIn.getDelegator());
+        UserInfoCache.clear();
+    }
+
+    @Benchmark
+    public Map<String, Object> getUserInfo() {
+        return check(AuthExtensionServices.getUserInfo(dctx, UtilMisc.toMap("userLoginId", randomUser())));
+    }
+
+    @Benchmark
+    public Map<String, Object> getUserWithTenant() {
+        return check(AuthExtensionServices.getUserWithTenant(dctx, UtilMisc.toMap("userLoginId", randomUser(),
+                "includeOrganization", true)));
+    }
+
+    @Benchmark
+    public Map<String, Object> getTenantInfo() {
+        String partyId = organizationPartyId(ThreadLocalRandom.current().nextInt(organizations));
+        return check(AuthExtensionServices.getTenantInfo(dctx, UtilMisc.toMap("partyId", partyId)));
+    }
+
+    @Benchmark
+    public Map<String, Object> validateUserCredentials(Verification verification) {
+        Map<String, Object> result = AuthExtensionServices.validateUserCredentials(dctx, UtilMisc.toMap("userLoginId",
+                randomUser(), "password", PASSWORD));
+        if (!Boolean.TRUE.equals(result.get("isValid"))) {
+            throw new IllegalStateException("Credentials refused: " + result.get("errorMessage"));
+        }
+        return result;
+    }
+
+    private String randomUser() {
+        return userLoginId(ThreadLocalRandom.current().nextInt(users));
+    }
+
+    private static String userLoginId(int i) {
+        return String.format("bench%08d", i);
+    }
+
+    private static String organizationPartyId(int i) {
+        return String.format("BORG%05d", i);
+    }
+
+    /** A failed call would measure the error path, so fail the benchmark instead */
+    private static Map<String, Object> check(Map<String, Object> result) {
+        if (ServiceUtil.isError(result)) {
+            throw new IllegalStateException(ServiceUtil.getErrorMessage(result));
+        }
+        return result;
+    }
+
+    /**
+     * Dispatch context over the stand-in delegator. The services only ask it for the delegator; the
+     * constructor is not public, and the dispatcher is a proxy that answers getDelegator and nothing else.
+     */
+    private static DispatchContext dispatchContext(Delegator delegator) throws Exception {
+        LocalDispatcher dispatcher = (LocalDispatcher) Proxy.newProxyInstance(LocalDispatcher.class.getClassLoader(),
+                new Class<?>[] {LocalDispatcher.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getDelegator":
+                        return delegator;
+                    case "getName":
+                        return "auth-extension-bench";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    }
+                });
+        Constructor<DispatchContext> constructor = DispatchContext.class.getDeclaredConstructor(String.class, ClassLoader.class,
+                LocalDispatcher.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance("auth-extension-bench", AuthExtensionBenchmark.class.getClassLoader(), dispatcher);
+    }
+}
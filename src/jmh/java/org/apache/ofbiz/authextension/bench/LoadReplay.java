@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Load replay harness for the REST request-maps
+ *
+ * Replays the requests of a tab separated file (method, path relative to the webapp mount point and an
+ * optional JSON body, <code>#</code> starting a comment line) round robin from <code>--concurrency</code>
+ * workers against a running instance. After <code>--warmup</code> seconds, requests are recorded for
+ * <code>--duration</code> seconds, or until <code>--requests</code> were recorded, and throughput and latency
+ * percentiles are reported overall and per request-map. A response other than 2xx counts as an error, except
+ * rate limited ones (HTTP 429, or errorCode RATE_LIMITED in the body of validateUserCredentials), which are
+ * counted apart and left out of the throughput and latencies.
+ *
+ * Only needs the JDK: <code>java LoadReplay.java --file load-replay.tsv --login admin:ofbiz --insecure</code>
+ */
+public final class LoadReplay {
+
+    private static final Pattern ACCESS_TOKEN = Pattern.compile("\"access_token\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern RATE_LIMITED = Pattern.compile("\"errorCode\"\\s*:\\s*\"RATE_LIMITED\"");
+
+    private final String url;
+    private final List<String[]> requests;
+    private final Map<String, String> headers;
+    private final int concurrency;
+    private final long warmupMillis;
+    private final long durationMillis;
+    private final long maxRequests;
+    private final HttpClient client;
+
+    private LoadReplay(String url, List<String[]> requests, Map<String, String> headers, int concurrency, long warmupMillis,
+            long durationMillis, long maxRequests, HttpClient client) {
+        this.url = url;
+        this.requests = requests;
+        this.headers = headers;
+        this.concurrency = concurrency;
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+        this.maxRequests = maxRequests;
+        this.client = client;
+    }
+
+    /**
+     * Latencies, errors and rate limited responses of one request-map, recorded by a single worker
+     */
+    private static final class Recorder {
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+        private long rateLimited;
+        private final Map<Integer, Long> statuses = new TreeMap<>();
+
+        private void record(long nanos, int status, boolean limited) {
+            statuses.merge(status, 1L, Long::sum);
+            if (limited) {
+                rateLimited++;
+                return;
+            }
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (status < 200 || status >= 300) {
+                errors++;
+            }
+        }
+
+        private void addAll(Recorder other) {
+            latencies = Arrays.copyOf(latencies, Math.max(latencies.length, count + other.count));
+            System.arraycopy(other.latencies, 0, latencies, count, other.count);
+            count += other.count;
+            errors += other.errors;
+            rateLimited += other.rateLimited;
+            other.statuses.forEach((status, n) -> statuses.merge(status, n, Long::sum));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, List<String>> options = parseOptions(args);
+        String file = option(options, "file", null);
+        if (file == null) {
+            System.err.println("Usage: LoadReplay --file <requests.tsv> [--url https://localhost:8443/rest/auth-extension]"
+                    + " [--concurrency 16] [--warmup 10] [--duration 60] [--requests 0] [--token <bearer> | --login user:password]"
+                    + " [--header Name:value]... [--insecure]");
+            System.exit(2);
+        }
+        if (options.containsKey("insecure")) {
+            // Read when the HTTP client classes initialize, so before the client is built
+            System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+        }
+        String url = option(options, "url", "https://localhost:8443/rest/auth-extension");
+        HttpClient.Builder builder = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10));
+        if (options.containsKey("insecure")) {
+            builder.sslContext(trustAllContext());
+        }
+        HttpClient client = builder.build();
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String header : options.getOrDefault("header", List.of())) {
+            int colon = header.indexOf(':');
+            headers.put(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+        }
+        String token = option(options, "token", null);
+        if (token == null && options.containsKey("login")) {
+            token = fetchToken(client, url, option(options, "login", null));
+        }
+        if (token != null) {
+            headers.put("Authorization", "Bearer " + token);
+        }
+
+        List<String[]> requests = new ArrayList<>();
+        for (String line : Files.readAllLines(Path.of(file), StandardCharsets.UTF_8)) {
+            if (!line.isBlank() && !line.startsWith("#")) {
+                requests.add(line.split("\t", 3));
+            }
+        }
+        if (requests.isEmpty()) {
+            System.err.println("No requests in " + file);
+            System.exit(2);
+        }
+
+        LoadReplay replay = new LoadReplay(url, requests, headers, Integer.parseInt(option(options, "concurrency", "16")),
+                Long.parseLong(option(options, "warmup", "10")) * 1000L, Long.parseLong(option(options, "duration", "60")) * 1000L,
+                Long.parseLong(option(options, "requests", "0")), client);
+        replay.run();
+    }
+
+    private void run() throws Exception {
+        System.out.printf("Replaying %d requests against %s, %d workers, %d s warmup, %s%n", requests.size(), url, concurrency,
+                warmupMillis / 1000, maxRequests > 0 ? maxRequests + " requests" : durationMillis / 1000 + " s");
+        long start = System.currentTimeMillis();
+        long measureFrom = start + warmupMillis;
+        long measureUntil = measureFrom + durationMillis;
+        AtomicLong next = new AtomicLong();
+        AtomicLong recorded = new AtomicLong();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        List<Future<Map<String, Recorder>>> results = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            results.add(workers.submit(() -> work(next, recorded, measureFrom, measureUntil)));
+        }
+        Map<String, Recorder> merged = new TreeMap<>();
+        for (Future<Map<String, Recorder>> result : results) {
+            result.get().forEach((name, recorder) -> merged.computeIfAbsent(name, k -> new Recorder()).addAll(recorder));
+        }
+        workers.shutdown();
+        long measuredMillis = Math.max(1L, Math.min(System.currentTimeMillis(), measureUntil) - measureFrom);
+        report(merged, measuredMillis);
+    }
+
+    private Map<String, Recorder> work(AtomicLong next, AtomicLong recorded, long measureFrom, long measureUntil) {
+        Map<String, Recorder> recorders = new LinkedHashMap<>();
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= measureUntil || (maxRequests > 0 && recorded.get() >= maxRequests)) {
+                return recorders;
+            }
+            String[] request = requests.get((int) (next.getAndIncrement() % requests.size()));
+            long begin = System.nanoTime();
+            int status;
+            boolean limited = false;
+            try {
+                HttpResponse<String> response = send(request);
+                status = response.statusCode();
+                limited = status == 429 || RATE_LIMITED.matcher(response.body()).find();
+            } catch (IOException e) {
+                status = -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return recorders;
+            }
+            long elapsed = System.nanoTime() - begin;
+            if (now >= measureFrom && (maxRequests <= 0 || recorded.getAndIncrement() < maxRequests)) {
+                recorders.computeIfAbsent(requestMap(request[1]), k -> new Recorder()).record(elapsed, status, limited);
+            }
+        }
+    }
+
+    private HttpResponse<String> send(String[] request) throws IOException, InterruptedException {
+        String method = request[0].toUpperCase(Locale.ROOT);
+        String body = request.length > 2 ? request[2] : "";
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url + request[1]))
+            .timeout(Duration.ofSeconds(30))
+            .method(method, body.isEmpty() ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+        builder.header("Content-Type", "application/json");
+        headers.forEach(builder::header);
+        return client.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static void report(Map<String, Recorder> recorders, long measuredMillis) {
+        Recorder total = new Recorder();
+        System.out.printf("%n%-28s %9s %7s %9s %9s %9s %9s %9s %9s%n", "request", "count", "errors", "limited", "req/s", "p50 ms",
+                "p90 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Recorder> recorder : recorders.entrySet()) {
+            printLine(recorder.getKey(), recorder.getValue(), measuredMillis);
+            total.addAll(recorder.getValue());
+        }
+        printLine("TOTAL", total, measuredMillis);
+        if (total.rateLimited > 0) {
+            System.out.println("Rate limited responses are not counted in req/s and latencies, measure throughput with"
+                    + " ratelimit.enabled=false on the instance");
+        }
+        System.out.println();
+        System.out.println("Statuses per request (-1: no response)");
+        for (Map.Entry<String, Recorder> recorder : recorders.entrySet()) {
+            System.out.println("  " + recorder.getKey() + " " + recorder.getValue().statuses);
+        }
+    }
+
+    private static void printLine(String name, Recorder recorder, long measuredMillis) {
+        long[] latencies = Arrays.copyOf(recorder.latencies, recorder.count);
+        Arrays.sort(latencies);
+        System.out.printf("%-28s %9d %7d %9d %9.1f %9.2f %9.2f %9.2f %9.2f%n", name, recorder.count, recorder.errors,
+                recorder.rateLimited, recorder.count * 1000.0 / measuredMillis, percentile(latencies, 0.50), percentile(latencies, 0.90),
+                percentile(latencies, 0.99), percentile(latencies, 1.0));
+    }
+
+    /** Nearest-rank percentile in milliseconds of sorted nanosecond latencies */
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1_000_000.0;
+    }
+
+    /** Name of the request-map of a path: its last segment without the query string */
+    private static String requestMap(String path) {
+        int query = path.indexOf('?');
+        String uri = query >= 0 ? path.substring(0, query) : path;
+        return uri.substring(uri.lastIndexOf('/') + 1);
+    }
+
+    private static String fetchToken(HttpClient client, String url, String login) throws IOException, InterruptedException {
+        URI base = URI.create(url);
+        URI tokenUri = URI.create(base.getScheme() + "://" + base.getAuthority() + "/rest/auth/token");
+        HttpRequest request = HttpRequest.newBuilder(tokenUri)
+            .header("Authorization", "Basic " + Base64.getEncoder().encodeToString(login.getBytes(StandardCharsets.UTF_8)))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.noBody())
+            .build();
+        String body = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+        Matcher matcher = ACCESS_TOKEN.matcher(body);
+        if (!matcher.find()) {
+            throw new IllegalStateException("No access_token in the response of " + tokenUri + ": " + body);
+        }
+        return matcher.group(1);
+    }
+
+    private static SSLContext trustAllContext() throws Exception {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) { }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) { }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {trustAll}, null);
+        return context;
+    }
+
+    private static Map<String, List<String>> parseOptions(String[] args) {
+        Map<String, List<String>> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.computeIfAbsent(name, k -> new ArrayList<>()).add(flag ? "" : args[++i]);
+        }
+        return options;
+    }
+
+    private static String option(Map<String, List<String>> options, String name, String defaultValue) {
+        List<String> values = options.get(name);
+        return values != null ? values.get(values.size() - 1) : defaultValue;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityExpr;
+import org.apache.ofbiz.entity.condition.EntityFieldMap;
+import org.apache.ofbiz.entity.condition.EntityFieldValue;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.model.ModelEntity;
+import org.apache.ofbiz.entity.model.ModelField;
+import org.apache.ofbiz.entity.model.ModelFieldTypeReader;
+
+/**
+ * In-memory stand-in for the entity engine, for the benchmarks
+ *
+ * A {@link Delegator} proxy answering <code>findList</code>, which EntityQuery ends up calling, and
+ * <code>findOne</code>, which LoginServices calls for the UserLogin in strict mode, from rows held in memory. Conditions on the key field of an entity (userLoginId for AuthExtUserProfile, partyId otherwise)
+ * are answered from an index, other conditions scan the rows; every find parks the calling thread for the
+ * configured latency, standing in for the database round trip. Writes are counted and dropped. Methods the
+ * component does not use throw UnsupportedOperationException.
+ */
+public final class StandInDelegator implements InvocationHandler {
+
+    /** Datasource whose field types are used for the entity models */
+    private static final String FIELD_TYPE_HELPER = "localderby";
+
+    /** Fields of the entities the services read, "name:type", the first one being the key */
+    private static final Map<String, List<String>> ENTITY_FIELDS = new HashMap<>();
+    static {
+        ENTITY_FIELDS.put("AuthExtUserProfile", List.of("userLoginId:id-vlong", "partyId:id", "enabled:indicator",
+                "hasLoggedOut:indicator", "currentPassword:long-varchar", "requirePasswordChange:indicator",
+                "successiveFailedLogins:numeric", "disabledDateTime:date-time", "personPartyId:id", "firstName:name",
+                "lastName:name", "contactMechId:id", "contactMechPurposeTypeId:id", "emailFromDate:date-time",
+                "emailThruDate:date-time", "emailContactMechId:id", "contactMechTypeId:id", "email:long-varchar",
+                "partyRelationshipTypeId:id", "organizationPartyId:id", "employmentFromDate:date-time",
+                "employmentThruDate:date-time", "groupPartyId:id", "organizationName:name", "userLoginStamp:date-time",
+                "personStamp:date-time", "emailPurposeStamp:date-time", "emailStamp:date-time", "employmentStamp:date-time",
+                "organizationStamp:date-time"));
+        ENTITY_FIELDS.put("Party", List.of("partyId:id", "partyTypeId:id", "lastUpdatedStamp:date-time"));
+        ENTITY_FIELDS.put("PartyGroup", List.of("partyId:id", "groupName:name", "lastUpdatedStamp:date-time"));
+        ENTITY_FIELDS.put("PartyAttribute", List.of("partyId:id", "attrName:id-long", "attrValue:value",
+                "lastUpdatedStamp:date-time"));
+        ENTITY_FIELDS.put("UserLogin", List.of("userLoginId:id-vlong", "currentPassword:long-varchar", "passwordHint:description",
+                "isSystem:indicator", "enabled:indicator", "hasLoggedOut:indicator", "requirePasswordChange:indicator",
+                "lastCurrencyUom:id", "lastLocale:very-short", "lastTimeZone:id-long", "disabledDateTime:date-time",
+                "successiveFailedLogins:numeric", "externalAuthId:value", "userLdapDn:value", "disabledBy:id-vlong",
+                "partyId:id", "lastUpdatedStamp:date-time"));
+        ENTITY_FIELDS.put("UserLoginHistory", List.of("userLoginId:id-vlong", "fromDate:date-time", "partyId:id",
+                "successfulLogin:indicator", "passwordUsed:long-varchar"));
+    }
+
+    private final String delegatorName;
+    private final long latencyNanos;
+    private final Delegator delegator;
+    private final ModelFieldTypeReader fieldTypes = ModelFieldTypeReader.getModelFieldTypeReader(FIELD_TYPE_HELPER);
+    private final Map<String, ModelEntity> models = new HashMap<>();
+    private final Map<String, List<GenericValue>> rows = new HashMap<>();
+    private final Map<String, Map<Object, List<GenericValue>>> rowsByKey = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong(10000);
+    private final LongAdder finds = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    /**
+     * Create a stand-in delegator without rows, <code>latencyMicros</code> is waited by every find
+     */
+    public StandInDelegator(String delegatorName, long latencyMicros) {
+        this.delegatorName = delegatorName;
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.delegator = (Delegator) Proxy.newProxyInstance(Delegator.class.getClassLoader(), new Class<?>[] {Delegator.class}, this);
+        for (Map.Entry<String, List<String>> entity : ENTITY_FIELDS.entrySet()) {
+            ModelEntity model = new ModelEntity();
+            model.setEntityName(entity.getKey());
+            boolean key = true;
+            for (String field : entity.getValue()) {
+                String[] nameAndType = field.split(":");
+                model.addField(ModelField.create(model, nameAndType[0], nameAndType[1], key));
+                key = false;
+            }
+            models.put(entity.getKey(), model);
+            rows.put(entity.getKey(), new ArrayList<>());
+            rowsByKey.put(entity.getKey(), new HashMap<>());
+        }
+    }
+
+    public Delegator getDelegator() {
+        return delegator;
+    }
+
+    /**
+     * Add a row, to be called before the delegator is shared between threads
+     */
+    public void addRow(String entityName, Map<String, Object> fields) {
+        GenericValue value = GenericValue.create(delegator, models.get(entityName), fields);
+        rows.get(entityName).add(value);
+        rowsByKey.get(entityName).computeIfAbsent(value.get(keyField(entityName)), k -> new ArrayList<>(1)).add(value);
+    }
+
+    public long getFindCount() {
+        return finds.sum();
+    }
+
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+        case "getDelegatorName":
+        case "getDelegatorBaseName":
+        case "getOriginalDelegatorName":
+            return delegatorName;
+        case "getDelegatorTenantId":
+            return null;
+        case "getModelEntity":
+            return models.get((String) args[0]);
+        case "getEntityFieldType":
+            return fieldTypes.getModelFieldType((String) args[1]);
+        case "makeValue":
+            Map<String, Object> fields = args.length > 1 && args[1] instanceof Map ? UtilGenerics.cast(args[1]) : Collections.emptyMap();
+            return GenericValue.create(delegator, models.get((String) args[0]), fields);
+        case "findList":
+            return find((String) args[0], (EntityCondition) args[1]);
+        case "findOne":
+            if (args[1] instanceof Map) {
+                return findOne((String) args[0], UtilGenerics.cast(args[1]));
+            }
+            throw new UnsupportedOperationException("StandInDelegator only implements findOne by field map");
+        case "getNextSeqId":
+            return String.valueOf(sequence.incrementAndGet());
+        case "create":
+        case "createOrStore":
+            writes.increment();
+            return args[0];
+        case "store":
+        case "storeAll":
+        case "removeValue":
+            writes.increment();
+            return 1;
+        case "equals":
+            return proxy == args[0];
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "toString":
+            return "StandInDelegator[" + delegatorName + "]";
+        default:
+            throw new UnsupportedOperationException("StandInDelegator does not implement " + method.getName());
+        }
+    }
+
+    private List<GenericValue> find(String entityName, EntityCondition condition) {
+        finds.increment();
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        List<GenericValue> entityRows = rows.get(entityName);
+        if (entityRows == null) {
+            // SystemProperty and the other entities the benchmarks do not populate
+            return new ArrayList<>();
+        }
+        if (condition == null) {
+            return new ArrayList<>(entityRows);
+        }
+        Collection<?> keys = keyValues(entityName, condition);
+        Collection<GenericValue> candidates = entityRows;
+        if (keys != null) {
+            candidates = new ArrayList<>();
+            for (Object key : keys) {
+                candidates.addAll(rowsByKey.get(entityName).getOrDefault(key, Collections.emptyList()));
+            }
+        }
+        List<GenericValue> result = new ArrayList<>();
+        for (GenericValue row : candidates) {
+            if (condition.mapMatches(delegator, row)) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Row whose key field has the value given in <code>fields</code>, null when there is none
+     */
+    private GenericValue findOne(String entityName, Map<String, Object> fields) {
+        finds.increment();
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        Map<Object, List<GenericValue>> entityRows = rowsByKey.get(entityName);
+        List<GenericValue> found = entityRows != null ? entityRows.get(fields.get(keyField(entityName))) : null;
+        return found != null && !found.isEmpty() ? found.get(0) : null;
+    }
+
+    /**
+     * Values of the key field the condition restricts the rows to, null when it does not
+     */
+    private static Collection<?> keyValues(String entityName, EntityCondition condition) {
+        String keyField = keyField(entityName);
+        if (condition instanceof EntityFieldMap) {
+            EntityFieldMap fieldMap = (EntityFieldMap) condition;
+            return fieldMap.containsField(keyField) ? Collections.singletonList(fieldMap.getField(keyField)) : null;
+        }
+        if (condition instanceof EntityExpr) {
+            EntityExpr expr = (EntityExpr) condition;
+            if (expr.getLhs() instanceof EntityFieldValue && keyField.equals(((EntityFieldValue) expr.getLhs()).getFieldName())) {
+                if (expr.getOperator() == EntityOperator.EQUALS) {
+                    return Collections.singletonList(expr.getRhs());
+                }
+                if (expr.getOperator() == EntityOperator.IN && expr.getRhs() instanceof Collection) {
+                    return (Collection<?>) expr.getRhs();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String keyField(String entityName) {
+        return ENTITY_FIELDS.get(entityName).get(0).split(":")[0];
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.PrintWriter;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.ofbiz.base.lang.JSON;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.security.Security;
+
+/**
+ * OFBiz Auth Extension Events
+ *
+ * Request events of the REST webapp that need the HTTP request or write the
+ * response themselves.
+ */
+public class AuthExtensionEvents {
+
+    private static final String MODULE = AuthExtensionEvents.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    private static final String TENANT_HEADER = UtilProperties.getPropertyValue(RESOURCE, "tenant.header", "X-Tenant-Id");
+
+    private static final boolean TRUST_FORWARDED_FOR = UtilProperties.getPropertyAsBoolean(RESOURCE,
+            "ratelimit.client.trustForwardedFor", false);
+    /** Client rate limit warnings are logged at most once per interval, the rejections being counted by the limiter */
+    private static final long RATE_LIMIT_LOG_INTERVAL = UtilProperties.getPropertyAsLong(RESOURCE, "ratelimit.logInterval", 60000L);
+    private static final AtomicLong RATE_LIMIT_LOGGED_AT = new AtomicLong();
+    private static final AtomicLong RATE_LIMIT_LOGGED_COUNT = new AtomicLong();
+
+    private static final long HEALTH_MIN_SAMPLES = UtilProperties.getPropertyAsLong(RESOURCE, "health.minSamples", 20L);
+    private static final double HEALTH_ERROR_RATE_DEGRADED = UtilProperties.getPropertyAsDouble(RESOURCE,
+            "health.errorRate.degraded", 0.05);
+    private static final double HEALTH_ERROR_RATE_UNHEALTHY = UtilProperties.getPropertyAsDouble(RESOURCE,
+            "health.errorRate.unhealthy", 0.25);
+    private static final double HEALTH_QUERY_P95_DEGRADED = UtilProperties.getPropertyAsDouble(RESOURCE,
+            "health.queryP95Millis.degraded", 500.0);
+    private static final double HEALTH_QUERY_P95_UNHEALTHY = UtilProperties.getPropertyAsDouble(RESOURCE,
+            "health.queryP95Millis.unhealthy", 2000.0);
+
+    /**
+     * Controller preprocessor reading the tenant of the request from the <code>tenantId</code> parameter,
+     * or from the tenant header when there is none. The tenantId is stored as a request attribute, which the
+     * service event handler passes to the <code>tenantId</code> IN attribute of the services. The tenant is
+     * not looked up here: the preprocessor runs before the login check and the client rate limit, so the
+     * services resolve it, refusing unknown or disabled tenants, once the caller got through those.
+     */
+    public static String resolveTenant(HttpServletRequest request, HttpServletResponse response) {
+        String tenantId = request.getParameter("tenantId");
+        if (UtilValidate.isEmpty(tenantId)) {
+            tenantId = request.getHeader(TENANT_HEADER);
+        }
+        if (UtilValidate.isNotEmpty(tenantId)) {
+            request.setAttribute("tenantId", tenantId.trim());
+        }
+        return "success";
+    }
+
+    /**
+     * Refuse credential validation attempts of clients over their rate limit, before any service
+     * or entity work is done. Returns "success" to continue with the validateUserCredentials service,
+     * or "none" after writing a 429 response.
+     */
+    public static String checkClientRateLimit(HttpServletRequest request, HttpServletResponse response) {
+        String clientAddress = getClientAddress(request);
+        if (LoginRateLimiter.tryAcquireClient(clientAddress)) {
+            return "success";
+        }
+        long now = System.currentTimeMillis();
+        long loggedAt = RATE_LIMIT_LOGGED_AT.get();
+        if (now - loggedAt >= RATE_LIMIT_LOG_INTERVAL && RATE_LIMIT_LOGGED_AT.compareAndSet(loggedAt, now)) {
+            long rejected = LoginRateLimiter.getClientRejectedCount();
+            Debug.logWarning("Credential validation rate limit exceeded " + (rejected - RATE_LIMIT_LOGGED_COUNT.getAndSet(rejected))
+                    + " times since the last warning, lastly by client " + clientAddress, MODULE);
+        }
+        writeRateLimited(response);
+        return "none";
+    }
+
+    /**
+     * Report the component health computed from the service error rate and the entity query latency
+     * over the recent metrics window. Answers 503 when unhealthy so that load balancers take the
+     * instance out of rotation.
+     */
+    public static String health(HttpServletRequest request, HttpServletResponse response) {
+        double errorRate = AuthExtensionMetrics.getRecentErrorRate(HEALTH_MIN_SAMPLES);
+        double queryP95 = AuthExtensionMetrics.getRecentQueryP95Millis(HEALTH_MIN_SAMPLES);
+        String status = "healthy";
+        if (errorRate >= HEALTH_ERROR_RATE_UNHEALTHY || queryP95 >= HEALTH_QUERY_P95_UNHEALTHY) {
+            status = "unhealthy";
+        } else if (errorRate >= HEALTH_ERROR_RATE_DEGRADED || queryP95 >= HEALTH_QUERY_P95_DEGRADED) {
+            status = "degraded";
+        }
+
+        Map<String, Object> checks = new LinkedHashMap<>();
+        // -1 until enough calls were seen in the window
+        checks.put("errorRate", errorRate);
+        checks.put("queryP95Millis", queryP95);
+        checks.put("passwordHashQueueDepth", PasswordHashPool.getQueueDepth());
+        Map<String, Object> services = new LinkedHashMap<>();
+        for (Map.Entry<String, AuthExtensionMetrics.Timer> service : AuthExtensionMetrics.getServices().entrySet()) {
+            services.put(service.getKey(), service.getValue().toMap());
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", status);
+        body.put("service", "ofbiz-auth-extension");
+        body.put("version", "1.0");
+        body.put("timestamp", UtilDateTime.nowTimestamp().toString());
+        body.put("checks", checks);
+        body.put("services", services);
+        body.put("endpoints", UtilMisc.toList("/rest/services/getUserInfo", "/rest/services/getUsersInfo",
+                "/rest/services/getUserWithTenant", "/rest/services/getTenantInfo", "/rest/services/validateUserCredentials"));
+        if ("unhealthy".equals(status)) {
+            response.setStatus(503);
+        }
+        writeJson(response, body);
+        return "success";
+    }
+
+    /**
+     * Expose the metrics in the Prometheus text format
+     */
+    public static String metrics(HttpServletRequest request, HttpServletResponse response) {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        try {
+            PrintWriter writer = response.getWriter();
+            writer.write(AuthExtensionMetrics.toPrometheus());
+            writer.flush();
+        } catch (IOException e) {
+            Debug.logError(e, "Unable to write metrics", MODULE);
+        }
+        return "success";
+    }
+
+    /**
+     * Stream user info as NDJSON, one user per line in userLoginId order, followed by a line holding the
+     * <code>cursor</code> to resume from, <code>hasMore</code> and <code>exportedAt</code>, the time to pass as
+     * <code>changedSince</code> in the next sync. Parameters: <code>cursor</code>, <code>changedSince</code>
+     * (epoch milliseconds or ISO-8601 instant), <code>limit</code> (users, all by default) and <code>pageSize</code>,
+     * users of the tenant named by {@link #resolveTenant}.
+     * Pages are read in separate transactions and flushed as they are written.
+     */
+    public static String exportUsers(HttpServletRequest request, HttpServletResponse response) {
+        String tenantId = (String) request.getAttribute("tenantId");
+        GenericValue userLogin = (GenericValue) request.getAttribute("userLogin");
+        if (userLogin == null) {
+            userLogin = (GenericValue) request.getSession().getAttribute("userLogin");
+        }
+        if (!TenantRegistry.isAccessAllowed((Delegator) request.getAttribute("delegator"), (Security) request.getAttribute("security"),
+                userLogin, tenantId)) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            writeJson(response, UtilMisc.toMap("errorMessage", "Not allowed to access tenant: " + tenantId));
+            return "none";
+        }
+        Delegator delegator;
+        try {
+            TenantRegistry.Tenant tenant = TenantRegistry.get((Delegator) request.getAttribute("delegator"), tenantId);
+            if (tenant == null) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                writeJson(response, UtilMisc.toMap("errorCode", AuthExtensionServices.UNKNOWN_TENANT,
+                        "errorMessage", "Unknown tenant: " + tenantId));
+                return "none";
+            }
+            delegator = tenant.getDelegator();
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Database error resolving the tenant of the user export", MODULE);
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            writeJson(response, UtilMisc.toMap("errorMessage", "Error exporting users: " + e.getMessage()));
+            return "none";
+        }
+        String cursor = UtilValidate.isNotEmpty(request.getParameter("cursor")) ? request.getParameter("cursor") : null;
+        Timestamp changedSince;
+        long limit;
+        int pageSize;
+        try {
+            changedSince = parseTimestamp(request.getParameter("changedSince"));
+            limit = UtilValidate.isNotEmpty(request.getParameter("limit")) ? Long.parseLong(request.getParameter("limit")) : 0L;
+            pageSize = UserExport.toPageSize(UtilValidate.isNotEmpty(request.getParameter("pageSize"))
+                    ? Integer.valueOf(request.getParameter("pageSize")) : null);
+        } catch (NumberFormatException | DateTimeParseException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeJson(response, UtilMisc.toMap("errorMessage", "Invalid export parameter: " + e.getMessage()));
+            return "none";
+        }
+
+        Timestamp exportedAt = UtilDateTime.nowTimestamp();
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        // Written users and the userLoginId of the last one, the cursor to resume from
+        long[] count = {0L};
+        String[] lastUserLoginId = {cursor};
+        boolean hasMore;
+        try {
+            PrintWriter writer = response.getWriter();
+            try {
+                // One iterator for the whole export, flushed to the client every pageSize users
+                hasMore = UserExport.export(delegator, cursor, changedSince, limit, entry -> {
+                    try {
+                        writer.write(JSON.from(entry.getUserInfoView()).toString());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    writer.write('\n');
+                    lastUserLoginId[0] = entry.getUserLoginId();
+                    if (++count[0] % pageSize == 0) {
+                        writer.flush();
+                    }
+                });
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Database error exporting users", MODULE);
+                if (!response.isCommitted()) {
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+                // The client resumes after the last user written
+                Map<String, Object> failed = new LinkedHashMap<>();
+                failed.put("cursor", lastUserLoginId[0]);
+                failed.put("count", count[0]);
+                failed.put("errorMessage", "Error exporting users: " + e.getMessage());
+                writer.write(JSON.from(failed).toString());
+                writer.write('\n');
+                writer.flush();
+                return "none";
+            }
+            Map<String, Object> last = new LinkedHashMap<>();
+            last.put("cursor", lastUserLoginId[0]);
+            last.put("count", count[0]);
+            last.put("hasMore", hasMore);
+            last.put("exportedAt", exportedAt.getTime());
+            writer.write(JSON.from(last).toString());
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            Debug.logError(e, "Unable to write user export", MODULE);
+        } catch (UncheckedIOException e) {
+            Debug.logError(e.getCause(), "Unable to write user export", MODULE);
+        }
+        return "none";
+    }
+
+    private static Timestamp parseTimestamp(String value) {
+        if (UtilValidate.isEmpty(value)) {
+            return null;
+        }
+        if (value.chars().allMatch(Character::isDigit)) {
+            return new Timestamp(Long.parseLong(value));
+        }
+        return Timestamp.from(Instant.parse(value));
+    }
+
+    private static String getClientAddress(HttpServletRequest request) {
+        if (TRUST_FORWARDED_FOR) {
+            String forwardedFor = request.getHeader("X-Forwarded-For");
+            if (UtilValidate.isNotEmpty(forwardedFor)) {
+                int comma = forwardedFor.indexOf(',');
+                return (comma > 0 ? forwardedFor.substring(0, comma) : forwardedFor).trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    private static void writeRateLimited(HttpServletResponse response) {
+        Map<String, Object> body = UtilMisc.toMap("isValid", false, "errorCode", LoginRateLimiter.ERROR_CODE,
+                "errorMessage", LoginRateLimiter.ERROR_MESSAGE);
+        response.setStatus(429);
+        response.setHeader("Retry-After", "1");
+        writeJson(response, body);
+    }
+
+    private static void writeJson(HttpServletResponse response, Map<String, Object> body) {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        try {
+            PrintWriter writer = response.getWriter();
+            writer.write(JSON.from(body).toString());
+            writer.flush();
+        } catch (IOException e) {
+            Debug.logError(e, "Unable to write response", MODULE);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.GenericEntityException;
+
+/**
+ * Call counts, error counts and latency histograms of the component
+ *
+ * There is one {@link Timer} per service, per entity query step and per stage of the password
+ * hash pool. Recording is lock-free: counters are LongAdders and histograms are arrays of
+ * log-linear buckets (four per power of two of microseconds, so percentiles are within 19%).
+ * Besides the totals since startup, each timer keeps the current and previous
+ * <code>metrics.window</code> so that health reflects recent behaviour only.
+ */
+public final class AuthExtensionMetrics {
+
+    private static final String RESOURCE = "authextension";
+
+    private static final long WINDOW_MILLIS = UtilProperties.getPropertyAsLong(RESOURCE, "metrics.window", 60000L);
+
+    private static final Map<String, Timer> SERVICES = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> QUERIES = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> STAGES = new ConcurrentHashMap<>();
+    /** Set by {@link #serverError} during the service call running on the thread */
+    private static final ThreadLocal<Boolean> SERVER_ERROR = new ThreadLocal<>();
+
+    private AuthExtensionMetrics() { }
+
+    /**
+     * Entity work whose duration is recorded by {@link #timeQuery}
+     */
+    @FunctionalInterface
+    public interface EntityCall<T> {
+        T call() throws GenericEntityException;
+    }
+
+    /**
+     * Service call whose duration and outcome are recorded by {@link #timeService}
+     */
+    @FunctionalInterface
+    public interface ServiceCall {
+        Map<String, Object> call();
+    }
+
+    public static Timer service(String serviceName) {
+        return SERVICES.computeIfAbsent(serviceName, k -> new Timer());
+    }
+
+    public static Timer query(String step) {
+        return QUERIES.computeIfAbsent(step, k -> new Timer());
+    }
+
+    public static Timer stage(String stage) {
+        return STAGES.computeIfAbsent(stage, k -> new Timer());
+    }
+
+    /**
+     * Run a service implementation, counting it as failed when it reports a server error through
+     * {@link #serverError}, returns a result with the errorCode INTERNAL_ERROR, or throws. Error results
+     * answering the request itself, such as an unknown user or a missing parameter, are not failures:
+     * they would turn the health of a sound instance to degraded.
+     */
+    public static Map<String, Object> timeService(String serviceName, ServiceCall call) {
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        SERVER_ERROR.remove();
+        try {
+            Map<String, Object> result = call.call();
+            failed = SERVER_ERROR.get() != null || AuthExtensionServices.INTERNAL_ERROR.equals(result.get("errorCode"));
+            return result;
+        } finally {
+            SERVER_ERROR.remove();
+            service(serviceName).record(System.nanoTime() - startTime, failed);
+        }
+    }
+
+    /**
+     * Count the service call running on this thread as failed, called where a database or other
+     * server side error is caught
+     */
+    public static void serverError() {
+        SERVER_ERROR.set(Boolean.TRUE);
+    }
+
+    /**
+     * Run an entity query step, recording its duration and whether it failed
+     */
+    public static <T> T timeQuery(String step, EntityCall<T> call) throws GenericEntityException {
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            T value = call.call();
+            failed = false;
+            return value;
+        } finally {
+            query(step).record(System.nanoTime() - startTime, failed);
+        }
+    }
+
+    public static Map<String, Timer> getServices() {
+        return new TreeMap<>(SERVICES);
+    }
+
+    public static Map<String, Timer> getQueries() {
+        return new TreeMap<>(QUERIES);
+    }
+
+    public static Map<String, Timer> getStages() {
+        return new TreeMap<>(STAGES);
+    }
+
+    /**
+     * Error rate of all services over the recent window, or -1 when there were fewer calls than <code>minSamples</code>
+     */
+    public static double getRecentErrorRate(long minSamples) {
+        long count = 0;
+        long errors = 0;
+        for (Timer timer : SERVICES.values()) {
+            Histogram recent = timer.recent();
+            count += recent.count;
+            errors += recent.errors;
+        }
+        return count < minSamples ? -1.0 : (double) errors / count;
+    }
+
+    /**
+     * Highest 95th percentile in milliseconds of the query steps over the recent window, or -1 when unknown
+     */
+    public static double getRecentQueryP95Millis(long minSamples) {
+        double p95 = -1.0;
+        for (Timer timer : QUERIES.values()) {
+            Histogram recent = timer.recent();
+            if (recent.count >= minSamples) {
+                p95 = Math.max(p95, recent.percentileMillis(0.95));
+            }
+        }
+        return p95;
+    }
+
+    /**
+     * Render all timers in the Prometheus text exposition format, as summaries with quantiles since startup
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        appendSummaries(out, "ofbiz_auth_extension_service", "service", SERVICES, "Service call latency in seconds");
+        appendSummaries(out, "ofbiz_auth_extension_query", "step", QUERIES, "Entity query step latency in seconds");
+        appendSummaries(out, "ofbiz_auth_extension_stage", "stage", STAGES, "Password hash pool stage latency in seconds");
+        Map<String, Object> cacheStats = UserInfoCache.getStats();
+        appendValue(out, "ofbiz_auth_extension_user_info_cache_size", "gauge", "Entries in the user info cache", cacheStats.get("size"));
+        appendValue(out, "ofbiz_auth_extension_user_info_cache_hits_total", "counter", "User info cache hits", cacheStats.get("hitCount"));
+        appendValue(out, "ofbiz_auth_extension_user_info_cache_misses_total", "counter", "User info cache misses", cacheStats.get("missCount"));
+        appendValue(out, "ofbiz_auth_extension_rate_limited_users_total", "counter", "Attempts refused by the per user rate limit",
+                LoginRateLimiter.getUserRejectedCount());
+        appendValue(out, "ofbiz_auth_extension_rate_limited_clients_total", "counter", "Attempts refused by the per client rate limit",
+                LoginRateLimiter.getClientRejectedCount());
+        appendValue(out, "ofbiz_auth_extension_password_hash_queue_depth", "gauge", "Verifications waiting for the password hash pool",
+                PasswordHashPool.getQueueDepth());
+        appendValue(out, "ofbiz_auth_extension_password_hash_rejected_total", "counter", "Verifications refused by the password hash pool",
+                PasswordHashPool.getRejectedCount());
+        return out.toString();
+    }
+
+    private static void appendValue(StringBuilder out, String name, String type, String help, Object value) {
+        if (value == null) {
+            return;
+        }
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendSummaries(StringBuilder out, String name, String label, Map<String, Timer> timers, String help) {
+        if (timers.isEmpty()) {
+            return;
+        }
+        out.append("# HELP ").append(name).append("_seconds ").append(help).append('\n');
+        out.append("# TYPE ").append(name).append("_seconds summary\n");
+        Map<String, Histogram> totals = new TreeMap<>();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            totals.put(entry.getKey(), entry.getValue().total());
+        }
+        for (Map.Entry<String, Histogram> entry : totals.entrySet()) {
+            String labels = label + "=\"" + entry.getKey() + "\"";
+            Histogram total = entry.getValue();
+            for (double quantile : new double[] {0.5, 0.95, 0.99}) {
+                out.append(name).append("_seconds{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(total.percentileMillis(quantile) / 1000.0).append('\n');
+            }
+            out.append(name).append("_seconds_sum{").append(labels).append("} ").append(total.sumNanos / 1e9).append('\n');
+            out.append(name).append("_seconds_count{").append(labels).append("} ").append(total.count).append('\n');
+        }
+        out.append("# HELP ").append(name).append("_errors_total Failed calls\n");
+        out.append("# TYPE ").append(name).append("_errors_total counter\n");
+        for (Map.Entry<String, Histogram> entry : totals.entrySet()) {
+            out.append(name).append("_errors_total{").append(label).append("=\"").append(entry.getKey()).append("\"} ")
+                .append(entry.getValue().errors).append('\n');
+        }
+    }
+
+    /**
+     * Latency and outcome recorder
+     */
+    public static final class Timer {
+        private static final int BUCKETS = 160;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final Window[] windows = {new Window(), new Window()};
+
+        private Timer() { }
+
+        public void record(long nanos, boolean failed) {
+            int bucket = bucket(nanos);
+            count.increment();
+            sumNanos.add(nanos);
+            buckets.incrementAndGet(bucket);
+            if (failed) {
+                errors.increment();
+            }
+            long epoch = System.currentTimeMillis() / WINDOW_MILLIS;
+            Window window = windows[(int) (epoch & 1)];
+            window.roll(epoch);
+            window.count.increment();
+            window.buckets.incrementAndGet(bucket);
+            if (failed) {
+                window.errors.increment();
+            }
+        }
+
+        /** Totals since startup */
+        public Histogram total() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new Histogram(count.sum(), errors.sum(), sumNanos.sum(), counts);
+        }
+
+        /** Current and previous window */
+        public Histogram recent() {
+            long epoch = System.currentTimeMillis() / WINDOW_MILLIS;
+            long[] counts = new long[BUCKETS];
+            long recentCount = 0;
+            long recentErrors = 0;
+            for (Window window : windows) {
+                if (window.epoch >= epoch - 1) {
+                    recentCount += window.count.sum();
+                    recentErrors += window.errors.sum();
+                    for (int i = 0; i < BUCKETS; i++) {
+                        counts[i] += window.buckets.get(i);
+                    }
+                }
+            }
+            return new Histogram(recentCount, recentErrors, 0L, counts);
+        }
+
+        public Map<String, Object> toMap() {
+            Histogram total = total();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", total.count);
+            map.put("errors", total.errors);
+            map.put("avgMillis", total.count > 0 ? total.sumNanos / total.count / 1e6 : 0.0);
+            map.put("p50Millis", total.percentileMillis(0.5));
+            map.put("p95Millis", total.percentileMillis(0.95));
+            map.put("p99Millis", total.percentileMillis(0.99));
+            return map;
+        }
+
+        /**
+         * Bucket of a duration: four linear sub-buckets per power of two of microseconds
+         */
+        private static int bucket(long nanos) {
+            long micros = Math.max(0L, nanos / 1000L);
+            if (micros < 4) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int bucket = (exponent << 2) | (int) ((micros >>> (exponent - 2)) & 3);
+            return Math.min(bucket - 4, BUCKETS - 1);
+        }
+
+        private static double upperBoundMillis(int bucket) {
+            if (bucket < 4) {
+                return (bucket + 1) / 1000.0;
+            }
+            int exponent = (bucket + 4) >>> 2;
+            long subBucket = (bucket + 4) & 3;
+            return ((4 + subBucket + 1) << (exponent - 2)) / 1000.0;
+        }
+    }
+
+    /**
+     * Counters of one window, reset when the window comes round again
+     */
+    private static final class Window {
+        private volatile long epoch = -1;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(Timer.BUCKETS);
+
+        private void roll(long current) {
+            if (epoch != current) {
+                synchronized (this) {
+                    if (epoch != current) {
+                        count.reset();
+                        errors.reset();
+                        for (int i = 0; i < Timer.BUCKETS; i++) {
+                            buckets.set(i, 0L);
+                        }
+                        epoch = current;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable snapshot of a timer
+     */
+    public static final class Histogram {
+        private final long count;
+        private final long errors;
+        private final long sumNanos;
+        private final long[] buckets;
+
+        private Histogram(long count, long errors, long sumNanos, long[] buckets) {
+            this.count = count;
+            this.errors = errors;
+            this.sumNanos = sumNanos;
+            this.buckets = buckets;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /** Upper bound in milliseconds of the bucket holding the given quantile, 0 when empty */
+        public double percentileMillis(double quantile) {
+            long total = 0;
+            for (long bucketCount : buckets) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0.0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Timer.upperBoundMillis(i);
+                }
+            }
+            return Timer.upperBoundMillis(buckets.length - 1);
+        }
+    }
+}
@@ -18,18 +18,26 @@
  */
 package org.apache.ofbiz.authextension;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilGenerics;
 import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.common.login.LoginServices;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
-import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.service.DispatchContext;
 import org.apache.ofbiz.service.ServiceUtil;
 
@@ -42,322 +50,536 @@ import org.apache.ofbiz.service.ServiceUtil;
 public class AuthExtensionServices {
     
     private static final String MODULE = AuthExtensionServices.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    /** errorCode of a validateUserCredentials call that failed on the server side */
+    public static final String INTERNAL_ERROR = "INTERNAL_ERROR";
+    /** errorCode of a validateUserCredentials call for a tenant that is unknown or disabled */
+    public static final String UNKNOWN_TENANT = "UNKNOWN_TENANT";
+    
+    /** Maximum number of userLoginIds accepted by getUsersInfo */
+    private static final int BATCH_MAX_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "userinfo.batch.maxSize", 10000);
+    /** Number of userLoginIds resolved per query by getUsersInfo */
+    private static final int BATCH_CHUNK_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "userinfo.batch.chunkSize", 1000);
+    
+    /** userInfo fields that getUserInfo also returns at the top level when present */
+    private static final List<String> OPTIONAL_USER_FIELDS = UtilMisc.toList("firstName", "lastName", "email",
+            "organizationPartyId", "organizationName");
 
     /**
      * Get user information including party details
      */
     public static Map<String, Object> getUserInfo(DispatchContext dctx, Map<String, Object> context) {
-        Delegator delegator = dctx.getDelegator();
+        return AuthExtensionMetrics.timeService("getUserInfo", () -> doGetUserInfo(dctx, context));
+    }
+
+    private static Map<String, Object> doGetUserInfo(DispatchContext dctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
         String userLoginId = (String) context.get("userLoginId");
+        String ifNoneMatch = (String) context.get("ifNoneMatch");
+        boolean compact = Boolean.TRUE.equals(context.get("compact"));
         Map<String, Object> result = ServiceUtil.returnSuccess();
-        
-        Debug.logInfo("===== Starting getUserInfo service =====", MODULE);
-        Debug.logInfo("Input parameters: userLoginId=" + userLoginId, MODULE);
+        Trace trace = Trace.start(MODULE, "getUserInfo", userLoginId);
         
         try {
             if (UtilValidate.isEmpty(userLoginId)) {
-                Debug.logWarning("getUserInfo called with empty userLoginId", MODULE);
                 return ServiceUtil.returnError("User Login ID is required");
             }
             
-            Debug.logInfo("Fetching UserLogin entity for userLoginId: " + userLoginId, MODULE);
+            Map<String, Object> denied = checkTenantAccess(dctx, context, tenantId);
+            if (denied != null) {
+                return denied;
+            }
+            TenantRegistry.Tenant tenant = TenantRegistry.get(dctx.getDelegator(), tenantId);
+            if (tenant == null) {
+                return ServiceUtil.returnError("Unknown tenant: " + tenantId);
+            }
             
-            // Get UserLogin
-            GenericValue userLogin = EntityQuery.use(delegator)
-                .from("UserLogin")
-                .where("userLoginId", userLoginId)
-                .queryOne();
-                
-            if (userLogin == null) {
-                Debug.logWarning("UserLogin not found for userLoginId: " + userLoginId, MODULE);
+            UserInfoCache.Entry entry = lookupUserInfo(new LookupContext(tenant.getDelegator(), trace), userLoginId);
+            if (entry == null) {
                 return ServiceUtil.returnError("User not found: " + userLoginId);
             }
             
-            Debug.logInfo("UserLogin found successfully", MODULE);
-            String partyId = userLogin.getString("partyId");
-            Debug.logInfo("Associated partyId: " + partyId, MODULE);
-            result.put("partyId", partyId);
-            
-            // Get current tenant ID from delegator name
-            String delegatorName = delegator.getDelegatorName();
-            String tenantId = extractTenantFromDelegatorName(delegatorName);
-            Debug.logInfo("Extracted tenantId: " + tenantId + " from delegatorName: " + delegatorName, MODULE);
-            result.put("tenantId", tenantId);
-            
-            Debug.logInfo("Building user info map", MODULE);
-            Map<String, Object> userInfo = new HashMap<>();
-            userInfo.put("userLoginId", userLoginId);
-            userInfo.put("partyId", partyId);
-            userInfo.put("tenantId", tenantId);
-            userInfo.put("enabled", "Y".equals(userLogin.getString("enabled")));
-            userInfo.put("hasLoggedOut", "Y".equals(userLogin.getString("hasLoggedOut")));
+            result.put("version", entry.getVersion());
+            if (entry.getVersion().equals(ifNoneMatch)) {
+                result.put("notModified", true);
+                trace.step("end", "notModified", true);
+                return result;
+            }
+            result.put("notModified", false);
             
-            if (UtilValidate.isNotEmpty(partyId)) {
-                Debug.logInfo("Fetching Person information for partyId: " + partyId, MODULE);
-                // Get Person information
-                GenericValue person = EntityQuery.use(delegator)
-                    .from("Person")
-                    .where("partyId", partyId)
-                    .queryOne();
-                    
-                if (person != null) {
-                    String firstName = person.getString("firstName");
-                    String lastName = person.getString("lastName");
-                    Debug.logInfo("Person found - firstName: " + firstName + ", lastName: " + lastName, MODULE);
-                    
-                    result.put("firstName", firstName);
-                    result.put("lastName", lastName);
-                    userInfo.put("firstName", firstName);
-                    userInfo.put("lastName", lastName);
-                } else {
-                    Debug.logInfo("No Person entity found for partyId: " + partyId, MODULE);
-                }
-                
-                Debug.logInfo("Fetching primary email for partyId: " + partyId, MODULE);
-                // Get primary email - using base entities instead of view entity
-                List<GenericValue> partyContactMechPurposes = EntityQuery.use(delegator)
-                    .from("PartyContactMechPurpose")
-                    .where("partyId", partyId, 
-                           "contactMechPurposeTypeId", "PRIMARY_EMAIL")
-                    .queryList();
-                
-                if (UtilValidate.isNotEmpty(partyContactMechPurposes)) {
-                    GenericValue pcmp = partyContactMechPurposes.get(0);
-                    String contactMechId = pcmp.getString("contactMechId");
-                    Debug.logInfo("Found contact mechanism ID: " + contactMechId, MODULE);
-                    
-                    GenericValue contactMech = EntityQuery.use(delegator)
-                        .from("ContactMech")
-                        .where("contactMechId", contactMechId,
-                               "contactMechTypeId", "EMAIL_ADDRESS")
-                        .queryOne();
-                        
-                    if (contactMech != null) {
-                        String email = contactMech.getString("infoString");
-                        Debug.logInfo("Found primary email: " + email, MODULE);
-                        result.put("email", email);
-                        userInfo.put("email", email);
-                    } else {
-                        Debug.logInfo("No email contact mechanism found for contactMechId: " + contactMechId, MODULE);
-                    }
-                } else {
-                    Debug.logInfo("No primary email contact mechanism purpose found for partyId: " + partyId, MODULE);
-                }
-                
-                Debug.logInfo("Fetching organization information for partyId: " + partyId, MODULE);
-                // Get organization information (if user belongs to one)
-                List<GenericValue> partyRelationships = EntityQuery.use(delegator)
-                    .from("PartyRelationship")
-                    .where("partyIdTo", partyId,
-                           "partyRelationshipTypeId", "EMPLOYMENT")
-                    .queryList();
-                    
-                if (UtilValidate.isNotEmpty(partyRelationships)) {
-                    GenericValue relationship = partyRelationships.get(0);
-                    String organizationPartyId = relationship.getString("partyIdFrom");
-                    Debug.logInfo("Found organization relationship - organizationPartyId: " + organizationPartyId, MODULE);
-                    result.put("organizationPartyId", organizationPartyId);
-                    userInfo.put("organizationPartyId", organizationPartyId);
-                    
-                    // Get organization name
-                    GenericValue partyGroup = EntityQuery.use(delegator)
-                        .from("PartyGroup")
-                        .where("partyId", organizationPartyId)
-                        .queryOne();
-                        
-                    if (partyGroup != null) {
-                        String organizationName = partyGroup.getString("groupName");
-                        Debug.logInfo("Found organization name: " + organizationName, MODULE);
-                        result.put("organizationName", organizationName);
-                        userInfo.put("organizationName", organizationName);
-                    } else {
-                        Debug.logInfo("No PartyGroup found for organizationPartyId: " + organizationPartyId, MODULE);
+            if (compact) {
+                result.put("userInfo", entry.getUserInfoView());
+            } else {
+                Map<String, Object> userInfo = entry.getUserInfo();
+                result.put("partyId", userInfo.get("partyId"));
+                result.put("tenantId", userInfo.get("tenantId"));
+                for (String field : OPTIONAL_USER_FIELDS) {
+                    if (userInfo.containsKey(field)) {
+                        result.put(field, userInfo.get(field));
                     }
-                } else {
-                    Debug.logInfo("No employment relationship found for partyId: " + partyId, MODULE);
                 }
-            } else {
-                Debug.logInfo("No partyId associated with userLoginId: " + userLoginId, MODULE);
+                result.put("userInfo", userInfo);
             }
-            
-            result.put("userInfo", userInfo);
-            Debug.logInfo("Successfully completed getUserInfo service for userLoginId: " + userLoginId, MODULE);
-            Debug.logInfo("===== Ending getUserInfo service =====", MODULE);
+            trace.step("end");
             
         } catch (GenericEntityException e) {
-            Debug.logError(e, "Database error in getUserInfo service for userLoginId: " + userLoginId + " - " + e.getMessage(), MODULE);
-            Debug.logError(e, "Error getting user information for: " + userLoginId, MODULE);
+            Debug.logError(e, "Database error in getUserInfo service", MODULE);
+            AuthExtensionMetrics.serverError();
+            trace.step("error", "exception", e.getClass().getSimpleName());
             return ServiceUtil.returnError("Error retrieving user information: " + e.getMessage());
         }
         
         return result;
     }
 
+    /**
+     * Error result when the caller may not route calls to <code>tenantId</code>, null when it may
+     */
+    private static Map<String, Object> checkTenantAccess(DispatchContext dctx, Map<String, Object> context, String tenantId) {
+        GenericValue userLogin = (GenericValue) context.get("userLogin");
+        if (TenantRegistry.isAccessAllowed(dctx.getDelegator(), dctx.getSecurity(), userLogin, tenantId)) {
+            return null;
+        }
+        return ServiceUtil.returnError("Not allowed to access tenant: " + tenantId);
+    }
+
+    /**
+     * Get the user info projection from the cache or the database, returns null if the UserLogin does not exist.
+     * The employer PartyGroup read as part of the projection is recorded in the lookup context.
+     */
+    private static UserInfoCache.Entry lookupUserInfo(LookupContext lookup, String userLoginId) throws GenericEntityException {
+        Delegator delegator = lookup.getDelegator();
+        Trace trace = lookup.getTrace();
+        UserInfoCache.Entry entry = UserInfoCache.get(delegator, userLoginId);
+        if (entry != null) {
+            trace.step("userInfo", "source", "cache");
+        } else {
+            long generation = UserInfoCache.generation();
+            entry = UserProfileQuery.findOne(delegator, userLoginId);
+            trace.step("userInfo", "source", UserProfileQuery.VIEW_ENTITY, "found", entry != null);
+            if (entry == null) {
+                return null;
+            }
+            UserInfoCache.put(entry, generation);
+        }
+        
+        String organizationPartyId = entry.getOrganizationPartyId();
+        if (organizationPartyId != null) {
+            Map<String, Object> userInfo = entry.getUserInfoView();
+            GenericValue partyGroup = null;
+            if (userInfo.containsKey("organizationName")) {
+                partyGroup = delegator.makeValue("PartyGroup", UtilMisc.toMap("partyId", organizationPartyId,
+                        "groupName", userInfo.get("organizationName")));
+            }
+            lookup.remember("PartyGroup", organizationPartyId, partyGroup);
+        }
+        return entry;
+    }
+
+    /**
+     * Get user information for a list of users, keyed by userLoginId
+     */
+    public static Map<String, Object> getUsersInfo(DispatchContext dctx, Map<String, Object> context) {
+        return AuthExtensionMetrics.timeService("getUsersInfo", () -> doGetUsersInfo(dctx, context));
+    }
+
+    private static Map<String, Object> doGetUsersInfo(DispatchContext dctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
+        List<String> userLoginIds = UtilGenerics.cast(context.get("userLoginIds"));
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        Trace trace = Trace.start(MODULE, "getUsersInfo", null);
+
+        if (UtilValidate.isEmpty(userLoginIds)) {
+            return ServiceUtil.returnError("User Login IDs are required");
+        }
+        if (userLoginIds.size() > BATCH_MAX_SIZE) {
+            return ServiceUtil.returnError("Too many User Login IDs: " + userLoginIds.size() + " (maximum " + BATCH_MAX_SIZE + ")");
+        }
+        trace.step("input", "userLoginIds", userLoginIds.size());
+
+        Delegator delegator;
+        try {
+            Map<String, Object> denied = checkTenantAccess(dctx, context, tenantId);
+            if (denied != null) {
+                return denied;
+            }
+            TenantRegistry.Tenant tenant = TenantRegistry.get(dctx.getDelegator(), tenantId);
+            if (tenant == null) {
+                return ServiceUtil.returnError("Unknown tenant: " + tenantId);
+            }
+            delegator = tenant.getDelegator();
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Database error resolving the tenant in getUsersInfo service", MODULE);
+            AuthExtensionMetrics.serverError();
+            return ServiceUtil.returnError("Error retrieving user information: " + e.getMessage());
+        }
+
+        Map<String, Map<String, Object>> usersInfo = new LinkedHashMap<>();
+        List<String> toLoad = new ArrayList<>();
+        for (String userLoginId : new LinkedHashSet<>(userLoginIds)) {
+            if (UtilValidate.isEmpty(userLoginId)) {
+                continue;
+            }
+            UserInfoCache.Entry entry = UserInfoCache.get(delegator, userLoginId);
+            if (entry != null) {
+                usersInfo.put(userLoginId, entry.getUserInfo());
+            } else {
+                toLoad.add(userLoginId);
+            }
+        }
+        trace.step("cache", "hits", usersInfo.size(), "misses", toLoad.size());
+
+        try {
+            // Chunks are independent and run concurrently when parallel lookups are enabled
+            long generation = UserInfoCache.generation();
+            List<Callable<List<UserInfoCache.Entry>>> chunks = new ArrayList<>();
+            for (int start = 0; start < toLoad.size(); start += BATCH_CHUNK_SIZE) {
+                List<String> chunk = toLoad.subList(start, Math.min(start + BATCH_CHUNK_SIZE, toLoad.size()));
+                chunks.add(() -> UserProfileQuery.findAll(delegator, chunk));
+            }
+            for (List<UserInfoCache.Entry> entries : ParallelLookups.invokeAll(chunks, ParallelLookups.newDeadline())) {
+                for (UserInfoCache.Entry entry : entries) {
+                    UserInfoCache.put(entry, generation);
+                    usersInfo.put(entry.getUserLoginId(), entry.getUserInfo());
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Database error in getUsersInfo service", MODULE);
+            AuthExtensionMetrics.serverError();
+            trace.step("error", "exception", e.getClass().getSimpleName());
+            return ServiceUtil.returnError("Error retrieving user information: " + e.getMessage());
+        }
+
+        List<String> notFound = new ArrayList<>();
+        for (String userLoginId : toLoad) {
+            if (!usersInfo.containsKey(userLoginId)) {
+                notFound.add(userLoginId);
+            }
+        }
+        result.put("usersInfo", usersInfo);
+        result.put("notFound", notFound);
+        trace.step("end", "notFound", notFound.size());
+        return result;
+    }
+
     /**
      * Get user information with complete tenant context
      */
     public static Map<String, Object> getUserWithTenant(DispatchContext dctx, Map<String, Object> context) {
+        return AuthExtensionMetrics.timeService("getUserWithTenant", () -> doGetUserWithTenant(dctx, context));
+    }
+
+    private static Map<String, Object> doGetUserWithTenant(DispatchContext dctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
         String userLoginId = (String) context.get("userLoginId");
         Boolean includeOrganization = (Boolean) context.get("includeOrganization");
         if (includeOrganization == null) includeOrganization = true;
+        String ifNoneMatch = (String) context.get("ifNoneMatch");
+        boolean compact = Boolean.TRUE.equals(context.get("compact"));
+        
+        Trace trace = Trace.start(MODULE, "getUserWithTenant", userLoginId);
+        trace.step("input", "includeOrganization", includeOrganization);
         
-        Debug.logInfo("===== Starting getUserWithTenant service =====", MODULE);
-        Debug.logInfo("Input parameters: userLoginId=" + userLoginId + ", includeOrganization=" + includeOrganization, MODULE);
+        if (UtilValidate.isEmpty(userLoginId)) {
+            return ServiceUtil.returnError("User Login ID is required");
+        }
+        
+        TenantRegistry.Tenant tenant;
+        LookupContext lookup;
         
         // Get basic user info first
-        Debug.logInfo("Calling getUserInfo service first", MODULE);
-        Map<String, Object> userResult = getUserInfo(dctx, context);
-        if (ServiceUtil.isError(userResult)) {
-            Debug.logError("getUserInfo service failed: " + ServiceUtil.getErrorMessage(userResult), MODULE);
-            return userResult;
+        UserInfoCache.Entry entry;
+        try {
+            Map<String, Object> denied = checkTenantAccess(dctx, context, tenantId);
+            if (denied != null) {
+                return denied;
+            }
+            tenant = TenantRegistry.get(dctx.getDelegator(), tenantId);
+            if (tenant == null) {
+                return ServiceUtil.returnError("Unknown tenant: " + tenantId);
+            }
+            // All lookups of this request share one context, so the employer PartyGroup read for the
+            // user info is not read again for the organization info
+            lookup = new LookupContext(tenant.getDelegator(), trace);
+            entry = lookupUserInfo(lookup, userLoginId);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Database error in getUserWithTenant service", MODULE);
+            AuthExtensionMetrics.serverError();
+            trace.step("error", "exception", e.getClass().getSimpleName());
+            return ServiceUtil.returnError("Error retrieving user information: " + e.getMessage());
+        }
+        if (entry == null) {
+            return ServiceUtil.returnError("User not found: " + userLoginId);
         }
         
         Map<String, Object> result = ServiceUtil.returnSuccess();
-        Map<String, Object> userInfo = (Map<String, Object>) userResult.get("userInfo");
+        String organizationPartyId = includeOrganization ? entry.getOrganizationPartyId() : null;
+        String version = userWithTenantVersion(lookup, tenant, entry, includeOrganization, organizationPartyId);
+        if (version != null) {
+            result.put("version", version);
+            if (version.equals(ifNoneMatch)) {
+                result.put("notModified", true);
+                trace.step("end", "notModified", true);
+                return result;
+            }
+        }
+        result.put("notModified", false);
+        
+        Map<String, Object> userInfo = entry.getUserInfoView();
+        // The compact form leaves out combinedInfo, which repeats userInfo, tenantInfo and organizationInfo
+        Map<String, Object> combinedInfo = compact ? null : new HashMap<>(userInfo);
         result.put("userInfo", userInfo);
         
-        // Get tenant information
-        String tenantId = (String) userInfo.get("tenantId");
-        if (UtilValidate.isNotEmpty(tenantId)) {
-            Map<String, Object> tenantContext = UtilMisc.toMap("tenantId", tenantId);
-            Map<String, Object> tenantResult = getTenantInfo(dctx, tenantContext);
-            
-            if (ServiceUtil.isSuccess(tenantResult)) {
-                result.put("tenantInfo", tenantResult.get("tenantInfo"));
+        // Get tenant information, from the registry
+        try {
+            Map<String, Object> tenantInfo = buildTenantInfo(lookup, tenant, null, null);
+            result.put("tenantInfo", tenantInfo);
+            if (combinedInfo != null) {
+                combinedInfo.put("tenant", tenantInfo);
             }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Database error retrieving tenant information in getUserWithTenant service", MODULE);
+            AuthExtensionMetrics.serverError();
+            trace.step("tenantInfo", "exception", e.getClass().getSimpleName());
         }
         
         // Include organization info if requested
-        if (includeOrganization) {
-            String organizationPartyId = (String) userInfo.get("organizationPartyId");
-            if (UtilValidate.isNotEmpty(organizationPartyId)) {
-                Map<String, Object> orgContext = UtilMisc.toMap("partyId", organizationPartyId);
-                Map<String, Object> orgResult = getTenantInfo(dctx, orgContext);
-                
-                if (ServiceUtil.isSuccess(orgResult)) {
-                    result.put("organizationInfo", orgResult.get("tenantInfo"));
+        if (UtilValidate.isNotEmpty(organizationPartyId)) {
+            try {
+                Map<String, Object> organizationInfo = buildTenantInfo(lookup, null, organizationPartyId, null);
+                result.put("organizationInfo", organizationInfo);
+                if (combinedInfo != null) {
+                    combinedInfo.put("organization", organizationInfo);
                 }
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Database error retrieving organization information in getUserWithTenant service", MODULE);
+                AuthExtensionMetrics.serverError();
+                trace.step("organizationInfo", "exception", e.getClass().getSimpleName());
             }
         }
-        
-        // Create combined info map
-        Map<String, Object> combinedInfo = new HashMap<>();
-        combinedInfo.putAll(userInfo);
-        if (result.containsKey("tenantInfo")) {
-            combinedInfo.put("tenant", result.get("tenantInfo"));
-        }
-        if (result.containsKey("organizationInfo")) {
-            combinedInfo.put("organization", result.get("organizationInfo"));
+        if (combinedInfo != null) {
+            result.put("combinedInfo", combinedInfo);
         }
-        result.put("combinedInfo", combinedInfo);
         
-        Debug.logInfo("Successfully completed getUserWithTenant service", MODULE);
-        Debug.logInfo("===== Ending getUserWithTenant service =====", MODULE);
+        trace.step("end");
         return result;
     }
 
+    /**
+     * Version tag of the getUserWithTenant response: the user info version combined with the tenant registry
+     * fields and the stamps of the organization Party and PartyAttributes. The rows are read through the lookup
+     * context, so building the organization info afterwards does not read them again. Returns null when they
+     * cannot be read.
+     */
+    private static String userWithTenantVersion(LookupContext lookup, TenantRegistry.Tenant tenant, UserInfoCache.Entry entry,
+            boolean includeOrganization, String organizationPartyId) {
+        VersionTag version = new VersionTag().add(entry.getVersion()).add(includeOrganization ? 1L : 0L);
+        version.add(tenant.getTenantName());
+        for (Map.Entry<String, String> attribute : tenant.getAttributes().entrySet()) {
+            version.add(attribute.getKey()).add(attribute.getValue());
+        }
+        if (UtilValidate.isNotEmpty(organizationPartyId)) {
+            try {
+                prefetchOrganization(lookup, organizationPartyId);
+                GenericValue party = lookup.findOne("Party", "partyId", organizationPartyId);
+                version.add(party != null ? party.getTimestamp("lastUpdatedStamp") : null);
+                // Attributes in name order, whatever order the database returns them in
+                Map<String, Timestamp> attributeStamps = new TreeMap<>();
+                for (GenericValue attribute : lookup.findList("PartyAttribute", "partyId", organizationPartyId)) {
+                    attributeStamps.put(attribute.getString("attrName"), attribute.getTimestamp("lastUpdatedStamp"));
+                }
+                for (Map.Entry<String, Timestamp> attributeStamp : attributeStamps.entrySet()) {
+                    version.add(attributeStamp.getKey()).add(attributeStamp.getValue());
+                }
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Database error computing the version in getUserWithTenant service", MODULE);
+                AuthExtensionMetrics.serverError();
+                return null;
+            }
+        }
+        return version.toString();
+    }
+
     /**
      * Get tenant/organization information
      */
     public static Map<String, Object> getTenantInfo(DispatchContext dctx, Map<String, Object> context) {
-        Delegator delegator = dctx.getDelegator();
+        return AuthExtensionMetrics.timeService("getTenantInfo", () -> doGetTenantInfo(dctx, context));
+    }
+
+    private static Map<String, Object> doGetTenantInfo(DispatchContext dctx, Map<String, Object> context) {
         String tenantId = (String) context.get("tenantId");
         String partyId = (String) context.get("partyId");
         Map<String, Object> result = ServiceUtil.returnSuccess();
         
-        Debug.logInfo("===== Starting getTenantInfo service =====", MODULE);
-        Debug.logInfo("Input parameters: tenantId=" + tenantId + ", partyId=" + partyId, MODULE);
+        Trace trace = Trace.start(MODULE, "getTenantInfo", null);
+        trace.step("input", "tenantId", tenantId, "partyId", partyId);
         
         try {
-            Map<String, Object> tenantInfo = new HashMap<>();
+            Map<String, Object> denied = checkTenantAccess(dctx, context, tenantId);
+            if (denied != null) {
+                return denied;
+            }
+            TenantRegistry.Tenant tenant = TenantRegistry.get(dctx.getDelegator(), tenantId);
+            if (tenant == null) {
+                return ServiceUtil.returnError("Unknown tenant: " + tenantId);
+            }
+            Map<String, Object> tenantInfo = buildTenantInfo(new LookupContext(tenant.getDelegator(), trace), tenant, partyId, result);
+            result.put("tenantInfo", tenantInfo);
+            trace.step("end");
             
-            // If we have a tenantId, use current delegator info
-            if (UtilValidate.isNotEmpty(tenantId)) {
-                Debug.logInfo("Using provided tenantId: " + tenantId, MODULE);
-                tenantInfo.put("tenantId", tenantId);
-                tenantInfo.put("delegatorName", delegator.getDelegatorName());
-            } else {
-                // Extract tenant from current delegator
-                String delegatorName = delegator.getDelegatorName();
-                tenantId = extractTenantFromDelegatorName(delegatorName);
-                Debug.logInfo("Extracted tenantId: " + tenantId + " from delegatorName: " + delegatorName, MODULE);
-                tenantInfo.put("tenantId", tenantId);
-                tenantInfo.put("delegatorName", delegatorName);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Database error in getTenantInfo service", MODULE);
+            AuthExtensionMetrics.serverError();
+            trace.step("error", "exception", e.getClass().getSimpleName());
+            return ServiceUtil.returnError("Error retrieving tenant information: " + e.getMessage());
+        }
+        
+        return result;
+    }
+
+    /**
+     * Build the tenantInfo map, the organization fields are also put into <code>result</code> when it is not null.
+     * The tenant name and the attributes of the tenant organization come from the registry entry of
+     * <code>tenant</code> when one is given.
+     */
+    private static Map<String, Object> buildTenantInfo(LookupContext lookup, TenantRegistry.Tenant tenant, String partyId,
+            Map<String, Object> result) throws GenericEntityException {
+        String delegatorName = lookup.getDelegator().getDelegatorName();
+        Map<String, Object> tenantInfo = new HashMap<>();
+        
+        if (tenant != null) {
+            tenantInfo.put("tenantId", tenant.getTenantId());
+            if (tenant.getTenantName() != null) {
+                tenantInfo.put("tenantName", tenant.getTenantName());
             }
+            // Kept apart from tenantAttributes, which holds the attributes of the requested partyId
+            if (!tenant.getAttributes().isEmpty()) {
+                tenantInfo.put("tenantOrganizationAttributes", tenant.getAttributes());
+                if (result != null) {
+                    result.put("tenantOrganizationAttributes", tenant.getAttributes());
+                }
+            }
+        } else {
+            // Without a registry entry, extract the tenantId from the current delegator
+            String tenantId = extractTenantFromDelegatorName(delegatorName);
+            lookup.getTrace().step("tenantId", "tenantId", tenantId, "delegatorName", delegatorName);
+            tenantInfo.put("tenantId", tenantId);
+        }
+        tenantInfo.put("delegatorName", delegatorName);
+        
+        // If we have a partyId, get organization details
+        if (UtilValidate.isNotEmpty(partyId)) {
+            prefetchOrganization(lookup, partyId);
             
-            // If we have a partyId, get organization details
-            if (UtilValidate.isNotEmpty(partyId)) {
-                GenericValue partyGroup = EntityQuery.use(delegator)
-                    .from("PartyGroup")
-                    .where("partyId", partyId)
-                    .queryOne();
-                    
-                if (partyGroup != null) {
-                    String organizationName = partyGroup.getString("groupName");
+            GenericValue partyGroup = lookup.findOne("PartyGroup", "partyId", partyId);
+                
+            if (partyGroup != null) {
+                String organizationName = partyGroup.getString("groupName");
+                if (result != null) {
                     result.put("organizationName", organizationName);
                     result.put("organizationPartyId", partyId);
-                    
-                    tenantInfo.put("organizationName", organizationName);
-                    tenantInfo.put("organizationPartyId", partyId);
-                    
-                    // Get partyTypeId from Party entity, not PartyGroup
-                    GenericValue party = EntityQuery.use(delegator)
-                        .from("Party")
-                        .where("partyId", partyId)
-                        .queryOne();
-                    if (party != null) {
-                        tenantInfo.put("partyTypeId", party.getString("partyTypeId"));
-                    }
                 }
                 
-                // Get party attributes
-                List<GenericValue> partyAttributes = EntityQuery.use(delegator)
-                    .from("PartyAttribute")
-                    .where("partyId", partyId)
-                    .queryList();
-                    
-                if (UtilValidate.isNotEmpty(partyAttributes)) {
-                    Map<String, String> attributes = new HashMap<>();
-                    for (GenericValue attr : partyAttributes) {
-                        attributes.put(attr.getString("attrName"), attr.getString("attrValue"));
-                    }
-                    tenantInfo.put("attributes", attributes);
-                    result.put("tenantAttributes", attributes);
+                tenantInfo.put("organizationName", organizationName);
+                tenantInfo.put("organizationPartyId", partyId);
+                
+                // Get partyTypeId from Party entity, not PartyGroup
+                GenericValue party = lookup.findOne("Party", "partyId", partyId);
+                if (party != null) {
+                    tenantInfo.put("partyTypeId", party.getString("partyTypeId"));
                 }
             }
             
-            result.put("tenantInfo", tenantInfo);
-            Debug.logInfo("Successfully completed getTenantInfo service", MODULE);
-            Debug.logInfo("===== Ending getTenantInfo service =====", MODULE);
-            
-        } catch (GenericEntityException e) {
-            Debug.logError(e, "Database error in getTenantInfo service - " + e.getMessage(), MODULE);
-            return ServiceUtil.returnError("Error retrieving tenant information: " + e.getMessage());
+            // Get party attributes
+            List<GenericValue> partyAttributes = lookup.findList("PartyAttribute", "partyId", partyId);
+                
+            if (UtilValidate.isNotEmpty(partyAttributes)) {
+                Map<String, String> attributes = new HashMap<>();
+                for (GenericValue attr : partyAttributes) {
+                    attributes.put(attr.getString("attrName"), attr.getString("attrValue"));
+                }
+                tenantInfo.put("attributes", attributes);
+                if (result != null) {
+                    result.put("tenantAttributes", attributes);
+                }
+            }
         }
         
-        return result;
+        return tenantInfo;
+    }
+
+    /**
+     * Read the organization rows concurrently when parallel lookups are enabled, the lookups
+     * that follow then find them in the context
+     */
+    private static void prefetchOrganization(LookupContext lookup, String partyId) throws GenericEntityException {
+        if (ParallelLookups.isEnabled()) {
+            List<Callable<Object>> branches = new ArrayList<>();
+            branches.add(() -> lookup.findOne("PartyGroup", "partyId", partyId));
+            branches.add(() -> lookup.findOne("Party", "partyId", partyId));
+            branches.add(() -> lookup.findList("PartyAttribute", "partyId", partyId));
+            ParallelLookups.invokeAll(branches, lookup.getDeadline());
+        }
     }
 
     /**
      * Validate user credentials and return user information
      */
     public static Map<String, Object> validateUserCredentials(DispatchContext dctx, Map<String, Object> context) {
+        return AuthExtensionMetrics.timeService("validateUserCredentials", () -> doValidateUserCredentials(dctx, context));
+    }
+
+    private static Map<String, Object> doValidateUserCredentials(DispatchContext dctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
         String userLoginId = (String) context.get("userLoginId");
         String password = (String) context.get("password");
+        boolean issueClaimsToken = Boolean.TRUE.equals(context.get("issueClaimsToken"));
         Map<String, Object> result = ServiceUtil.returnSuccess();
-        
-        Debug.logInfo("===== Starting validateUserCredentials service =====", MODULE);
-        Debug.logInfo("Input parameters: userLoginId=" + userLoginId + " (password hidden for security)", MODULE);
+        Trace trace = Trace.start(MODULE, "validateUserCredentials", userLoginId);
         
         try {
             if (UtilValidate.isEmpty(userLoginId) || UtilValidate.isEmpty(password)) {
-                Debug.logWarning("validateUserCredentials called with empty userLoginId or password", MODULE);
                 result.put("isValid", false);
                 result.put("errorMessage", "Username and password are required");
                 return result;
             }
             
-            Debug.logInfo("Attempting authentication using OFBiz LoginServices", MODULE);
+            // Refuse attempts over the per user rate limit before any entity or hash work
+            if (!LoginRateLimiter.tryAcquireUser(userLoginId)) {
+                trace.step("rateLimited");
+                result.put("isValid", false);
+                result.put("errorCode", LoginRateLimiter.ERROR_CODE);
+                result.put("errorMessage", LoginRateLimiter.ERROR_MESSAGE);
+                return result;
+            }
+            
+            TenantRegistry.Tenant tenant = TenantRegistry.get(dctx.getDelegator(), tenantId);
+            if (tenant == null) {
+                result.put("isValid", false);
+                result.put("errorCode", UNKNOWN_TENANT);
+                result.put("errorMessage", "Unknown tenant: " + tenantId);
+                return result;
+            }
+            Delegator delegator = tenant.getDelegator();
+            
+            if (CredentialVerifier.isFastMode()) {
+                CredentialVerifier.Result verification = CredentialVerifier.verify(delegator, userLoginId, password);
+                trace.step("verified", "mode", "fast", "isValid", verification.isValid());
+                result.put("isValid", verification.isValid());
+                if (verification.isValid()) {
+                    Map<String, Object> userInfo = verification.getEntry().getUserInfo();
+                    result.put("userInfo", userInfo);
+                    result.put("tenantId", userInfo.get("tenantId"));
+                    if (issueClaimsToken) {
+                        putClaimsToken(result, verification.getEntry());
+                    }
+                } else {
+                    result.put("errorMessage", verification.getErrorMessage());
+                }
+                return result;
+            }
             
             // Use OFBiz's built-in authentication
             Map<String, Object> loginContext = UtilMisc.toMap(
@@ -365,48 +587,288 @@ public class AuthExtensionServices {
                 "login.password", password
             );
             
-            Map<String, Object> loginResult = LoginServices.userLogin(dctx, loginContext);
+            // LoginServices reads the UserLogin through the delegator of the dispatch context
+            DispatchContext loginDctx = delegator.getDelegatorName().equals(dctx.getDelegator().getDelegatorName())
+                    ? dctx : tenant.getDispatchContext();
+            
+            // LoginServices hashes the password, so the whole call runs on the password hash pool. It also
+            // writes the login bookkeeping, so a call refused as SERVER_BUSY is one that never started
+            Map<String, Object> loginResult = PasswordHashPool.execute(() -> LoginServices.userLogin(loginDctx, loginContext));
+            boolean valid = ServiceUtil.isSuccess(loginResult);
+            trace.step("verified", "mode", "strict", "isValid", valid);
             
-            if (ServiceUtil.isSuccess(loginResult)) {
-                Debug.logInfo("Authentication successful for userLoginId: " + userLoginId, MODULE);
+            if (valid) {
                 result.put("isValid", true);
                 
-                // Get user information
-                Debug.logInfo("Fetching user information after successful authentication", MODULE);
-                Map<String, Object> userContext = UtilMisc.toMap("userLoginId", userLoginId);
-                Map<String, Object> userInfoResult = getUserInfo(dctx, userContext);
-                
-                if (ServiceUtil.isSuccess(userInfoResult)) {
-                    result.put("userInfo", userInfoResult.get("userInfo"));
-                    result.put("tenantId", userInfoResult.get("tenantId"));
-                    Debug.logInfo("User information retrieved successfully", MODULE);
-                } else {
-                    Debug.logWarning("Failed to retrieve user information after successful authentication", MODULE);
+                // Get user information, the credentials stay valid when it cannot be read
+                try {
+                    UserInfoCache.Entry entry = lookupUserInfo(new LookupContext(delegator, trace), userLoginId);
+                    if (entry != null) {
+                        Map<String, Object> userInfo = entry.getUserInfo();
+                        result.put("userInfo", userInfo);
+                        result.put("tenantId", userInfo.get("tenantId"));
+                        if (issueClaimsToken) {
+                            putClaimsToken(result, entry);
+                        }
+                    }
+                } catch (GenericEntityException e) {
+                    Debug.logWarning(e, "Failed to retrieve user information after successful authentication", MODULE);
+                    AuthExtensionMetrics.serverError();
+                    trace.step("userInfo", "exception", e.getClass().getSimpleName());
                 }
-                
-                Debug.logInfo("Successfully completed validateUserCredentials for: " + userLoginId, MODULE);
             } else {
-                Debug.logWarning("Authentication failed for userLoginId: " + userLoginId + " - " + ServiceUtil.getErrorMessage(loginResult), MODULE);
                 result.put("isValid", false);
                 result.put("errorMessage", ServiceUtil.getErrorMessage(loginResult));
             }
             
-            Debug.logInfo("===== Ending validateUserCredentials service =====", MODULE);
-            
+        } catch (RejectedExecutionException e) {
+            trace.step("refused", "reason", e.getMessage());
+            result.put("isValid", false);
+            result.put("errorCode", PasswordHashPool.ERROR_CODE);
+            result.put("errorMessage", PasswordHashPool.ERROR_MESSAGE);
         } catch (Exception e) {
-            Debug.logError(e, "Exception in validateUserCredentials for userLoginId: " + userLoginId + " - " + e.getMessage(), MODULE);
+            Debug.logError(e, "Exception in validateUserCredentials service", MODULE);
+            trace.step("error", "exception", e.getClass().getSimpleName());
             result.put("isValid", false);
+            result.put("errorCode", INTERNAL_ERROR);
             result.put("errorMessage", "Authentication error: " + e.getMessage());
         }
         
         return result;
     }
-    
+
+    private static void putClaimsToken(Map<String, Object> result, UserInfoCache.Entry entry) {
+        ClaimsToken.Issued issued = ClaimsToken.issue(entry);
+        if (issued != null) {
+            result.put("claimsToken", issued.getToken());
+            result.put("claimsTokenExpiresAt", new Timestamp(issued.getExpiresAt()));
+        }
+    }
+
+    /**
+     * Search users by userLoginId, email, first or last name prefix, or exact value, from the in-memory index
+     */
+    public static Map<String, Object> searchUsers(DispatchContext dctx, Map<String, Object> context) {
+        return AuthExtensionMetrics.timeService("searchUsers", () -> doSearchUsers(dctx, context));
+    }
+
+    private static Map<String, Object> doSearchUsers(DispatchContext dctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
+        String search = (String) context.get("search");
+        String searchField = (String) context.get("searchField");
+        boolean exact = Boolean.TRUE.equals(context.get("exact"));
+        Trace trace = Trace.start(MODULE, "searchUsers", null);
+
+        if (!UserSearchIndex.isEnabled()) {
+            return ServiceUtil.returnError("User search is disabled");
+        }
+        if (UtilValidate.isNotEmpty(searchField) && !UserSearchIndex.isSearchField(searchField)) {
+            return ServiceUtil.returnError("Invalid searchField: " + searchField);
+        }
+        try {
+            Map<String, Object> denied = checkTenantAccess(dctx, context, tenantId);
+            if (denied != null) {
+                return denied;
+            }
+            TenantRegistry.Tenant tenant = TenantRegistry.get(dctx.getDelegator(), tenantId);
+            if (tenant == null) {
+                return ServiceUtil.returnError("Unknown tenant: " + tenantId);
+            }
+            UserSearchIndex.Result page = UserSearchIndex.search(tenant.getDelegator(), search,
+                    UtilValidate.isNotEmpty(searchField) ? searchField : null, exact,
+                    (Integer) context.get("viewIndex"), (Integer) context.get("viewSize"));
+            if (page == null) {
+                trace.step("end", "building", true);
+                return ServiceUtil.returnError("The user search index of tenant " + tenant.getTenantId()
+                        + " is being built, retry later");
+            }
+            trace.step("end", "listSize", page.getListSize());
+            Map<String, Object> result = ServiceUtil.returnSuccess();
+            result.put("users", page.getUsers());
+            result.put("listSize", page.getListSize());
+            result.put("truncated", page.isTruncated());
+            result.put("viewIndex", page.getViewIndex());
+            result.put("viewSize", page.getViewSize());
+            return result;
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Database error in searchUsers service", MODULE);
+            AuthExtensionMetrics.serverError();
+            trace.step("error", "exception", e.getClass().getSimpleName());
+            return ServiceUtil.returnError("Error searching users: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Verify a claims token issued by validateUserCredentials, without database access
+     */
+    public static Map<String, Object> verifyClaimsToken(DispatchContext dctx, Map<String, Object> context) {
+        ClaimsToken.Verification verification = ClaimsToken.verify((String) context.get("claimsToken"));
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("isValid", verification.isValid());
+        if (verification.isValid()) {
+            result.put("userInfo", verification.getUserInfo());
+            result.put("tenantId", verification.getTenantId());
+        } else {
+            result.put("errorMessage", verification.getErrorMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Refuse the claims tokens issued so far for a user, or for the whole tenant when no userLoginId is given
+     */
+    public static Map<String, Object> revokeClaimsTokens(DispatchContext dctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
+        if (UtilValidate.isEmpty(tenantId)) {
+            tenantId = extractTenantFromDelegatorName(dctx.getDelegator().getDelegatorName());
+        }
+        Map<String, Object> denied = checkTenantAccess(dctx, context, tenantId);
+        if (denied != null) {
+            return denied;
+        }
+        String userLoginId = (String) context.get("userLoginId");
+        if (UtilValidate.isNotEmpty(userLoginId)) {
+            ClaimsToken.revoke(tenantId, userLoginId, null, null);
+        } else {
+            ClaimsToken.revokeTenant(tenantId);
+            Debug.logInfo("Revoked all claims tokens of tenant " + tenantId, MODULE);
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Export one keyset page of user info, in userLoginId order after <code>cursor</code>
+     */
+    public static Map<String, Object> exportUsers(DispatchContext dctx, Map<String, Object> context) {
+        String cursor = (String) context.get("cursor");
+        Timestamp changedSince = (Timestamp) context.get("changedSince");
+        int pageSize = UserExport.toPageSize((Integer) context.get("pageSize"));
+        String tenantId = (String) context.get("tenantId");
+        try {
+            Map<String, Object> denied = checkTenantAccess(dctx, context, tenantId);
+            if (denied != null) {
+                return denied;
+            }
+            TenantRegistry.Tenant tenant = TenantRegistry.get(dctx.getDelegator(), tenantId);
+            if (tenant == null) {
+                return ServiceUtil.returnError("Unknown tenant: " + tenantId);
+            }
+            UserExport.Page page = UserExport.exportPage(tenant.getDelegator(), cursor, changedSince, pageSize);
+            List<Map<String, Object>> users = new ArrayList<>(page.getEntries().size());
+            for (UserInfoCache.Entry entry : page.getEntries()) {
+                users.add(entry.getUserInfo());
+            }
+            Map<String, Object> result = ServiceUtil.returnSuccess();
+            result.put("users", users);
+            result.put("nextCursor", page.getNextCursor());
+            result.put("hasMore", page.hasMore());
+            return result;
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Database error in exportUsers service", MODULE);
+            return ServiceUtil.returnError("Error exporting users: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove cached user info built from the changed entity, revoke the claims tokens built from it and mark
+     * its users for reload in the search index, called by the entity ECAs
+     */
+    public static Map<String, Object> clearUserInfoCache(DispatchContext dctx, Map<String, Object> context) {
+        return clearUserInfo(dctx, context, false);
+    }
+
+    /**
+     * Like clearUserInfoCache, revoking the claims tokens of the user in any case: called by the entity ECAs
+     * when a UserLogin is removed or its password changes
+     */
+    public static Map<String, Object> invalidateUserCredentials(DispatchContext dctx, Map<String, Object> context) {
+        return clearUserInfo(dctx, context, true);
+    }
+
+    private static Map<String, Object> clearUserInfo(DispatchContext dctx, Map<String, Object> context, boolean revokeUser) {
+        String delegatorName = dctx.getDelegator().getDelegatorName();
+        String userLoginId = (String) context.get("userLoginId");
+        String contactMechId = (String) context.get("contactMechId");
+        String tenantId = extractTenantFromDelegatorName(delegatorName);
+        int removed = UserInfoCache.invalidateOnCommit(delegatorName, userLoginId, null, contactMechId);
+        UserSearchIndex.markDirty(delegatorName, userLoginId, null, contactMechId);
+        if (userLoginId != null) {
+            // Only UserLogin and UserLoginPasswordHistory carry a userLoginId; their partyId is the one of the
+            // user, whose entries were removed by userLoginId, and the login bookkeeping stores the UserLogin
+            // on most logins, so the tokens are only revoked when their claims change
+            if (revokeUser) {
+                ClaimsToken.revoke(tenantId, userLoginId, null, null);
+            } else {
+                ClaimsToken.userLoginChanged(tenantId, userLoginId, (String) context.get("partyId"),
+                        (String) context.get("enabled"), (String) context.get("hasLoggedOut"));
+            }
+        } else {
+            ClaimsToken.revoke(tenantId, null, null, contactMechId);
+            // Person, PartyContactMechPurpose and PartyGroup pass partyId, PartyRelationship passes both ends
+            for (String partyId : UtilMisc.toList((String) context.get("partyId"), (String) context.get("partyIdTo"),
+                    (String) context.get("partyIdFrom"))) {
+                if (partyId != null) {
+                    removed += UserInfoCache.invalidateOnCommit(delegatorName, null, partyId, null);
+                    ClaimsToken.revoke(tenantId, null, partyId, null);
+                    UserSearchIndex.markDirty(delegatorName, null, partyId, null);
+                }
+            }
+        }
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("removedCount", removed);
+        return result;
+    }
+
+    /**
+     * Get runtime statistics of the component caches, limiters and pools
+     */
+    public static Map<String, Object> getAuthExtensionStats(DispatchContext dctx, Map<String, Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("userInfoCache", UserInfoCache.getStats());
+        result.put("rateLimiter", LoginRateLimiter.getStats());
+        result.put("passwordHashPool", PasswordHashPool.getStats());
+        result.put("tenantRegistry", TenantRegistry.getStats());
+        result.put("searchIndex", UserSearchIndex.getStats());
+        result.put("services", toStats(AuthExtensionMetrics.getServices()));
+        result.put("queries", toStats(AuthExtensionMetrics.getQueries()));
+        return result;
+    }
+
+    /**
+     * Change the trace sample rate and the traced users, either can be left out to keep its current value
+     */
+    public static Map<String, Object> setAuthExtensionTrace(DispatchContext dctx, Map<String, Object> context) {
+        Double sampleRate = (Double) context.get("sampleRate");
+        List<String> traceUsers = UtilGenerics.cast(context.get("traceUsers"));
+        if (sampleRate != null) {
+            if (sampleRate < 0.0 || sampleRate > 1.0) {
+                return ServiceUtil.returnError("sampleRate must be between 0 and 1");
+            }
+            Trace.setSampleRate(sampleRate);
+        }
+        if (traceUsers != null) {
+            Trace.setUsers(traceUsers);
+        }
+        Debug.logInfo("Trace sample rate is " + Trace.getSampleRate() + ", " + Trace.getUsers().size() + " users traced", MODULE);
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("sampleRate", Trace.getSampleRate());
+        result.put("traceUsers", new ArrayList<>(Trace.getUsers()));
+        return result;
+    }
+
+    private static Map<String, Object> toStats(Map<String, AuthExtensionMetrics.Timer> timers) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, AuthExtensionMetrics.Timer> timer : timers.entrySet()) {
+            stats.put(timer.getKey(), timer.getValue().toMap());
+        }
+        return stats;
+    }
+
     /**
      * Extract tenant ID from delegator name
      * OFBiz uses pattern: baseName#tenantId
      */
-    private static String extractTenantFromDelegatorName(String delegatorName) {
+    static String extractTenantFromDelegatorName(String delegatorName) {
         if (UtilValidate.isEmpty(delegatorName)) {
             return "default";
         }
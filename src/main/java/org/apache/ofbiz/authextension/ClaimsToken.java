@@ -0,0 +1,383 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.ofbiz.base.lang.JSON;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilProperties;
+
+/**
+ * Signed, short-lived token carrying the user info claims returned by validateUserCredentials
+ *
+ * The token is a compact HS256 JWT: the header names the signing key (<code>kid</code>) and the payload
+ * holds <code>sub</code> (userLoginId), <code>tid</code> (tenantId), <code>iat</code>, <code>exp</code>,
+ * <code>iatMillis</code> (the issue time in milliseconds, compared with the revocations) and the
+ * <code>userInfo</code> map. Keys are configured per tenant as
+ * <code>claims.key.&lt;tenantId&gt;.&lt;kid&gt;</code> (base64, at least 32 bytes), tokens are signed with the
+ * key named by <code>claims.currentKid.&lt;tenantId&gt;</code> and verified with any configured key of the
+ * tenant, so a new key can be rolled out before the old one is removed. Tenants without keys use those of
+ * the <code>default</code> tenant.
+ *
+ * Verification does not touch the database. A token is refused when issued before the revocation time of its
+ * user, of one of the parties or the contact mech it was built from, or of its tenant. Revocations are recorded
+ * by clearUserInfoCache when the underlying entities change, and by revokeClaimsTokens; they are kept in memory
+ * for one token lifetime and are local to this instance. A UserLogin store only revokes the tokens of the user
+ * when it changes their claims (partyId, enabled) or logs the user out, see {@link #userLoginChanged}: the login
+ * bookkeeping (failed login count, hasLoggedOut reset) stores the UserLogin on nearly every login.
+ */
+public final class ClaimsToken {
+
+    private static final String MODULE = ClaimsToken.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    private static final String KEY_PREFIX = "claims.key.";
+    private static final String CURRENT_KID_PREFIX = "claims.currentKid.";
+    private static final String DEFAULT_TENANT = "default";
+    private static final int MIN_KEY_BYTES = 32;
+
+    private static final long TTL_SECONDS = UtilProperties.getPropertyAsLong(RESOURCE, "claims.ttl", 300L);
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /** tenantId to kid to key */
+    private static final Map<String, Map<String, byte[]>> KEYS = new HashMap<>();
+    /** tenantId to kid of the signing key */
+    private static final Map<String, String> CURRENT_KIDS = new HashMap<>();
+
+    /** Revocation times in milliseconds, keyed by tenant and user, party or contact mech */
+    private static final Map<String, Long> REVOKED_BEFORE = new ConcurrentHashMap<>();
+    /** Claims of the last token issued for each user, keyed like the user revocations */
+    private static final Map<String, IssuedClaims> ISSUED_CLAIMS = new ConcurrentHashMap<>();
+    /** Time in milliseconds between two prunes of the revocations older than a token lifetime */
+    private static final long PRUNE_INTERVAL = Math.max(1000L, Math.min(TTL_SECONDS * 1000L, 60000L));
+    private static final ScheduledExecutorService PRUNER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "auth-extension-claims-prune");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Properties properties = UtilProperties.getProperties(RESOURCE);
+        if (properties != null) {
+            for (String name : properties.stringPropertyNames()) {
+                String value = properties.getProperty(name).trim();
+                if (name.startsWith(KEY_PREFIX) && name.lastIndexOf('.') > KEY_PREFIX.length()) {
+                    String tenantId = name.substring(KEY_PREFIX.length(), name.lastIndexOf('.'));
+                    String kid = name.substring(name.lastIndexOf('.') + 1);
+                    byte[] key;
+                    try {
+                        key = Base64.getDecoder().decode(value);
+                    } catch (IllegalArgumentException e) {
+                        Debug.logError("Ignoring claims key " + kid + " of tenant " + tenantId + ", it is not valid base64", MODULE);
+                        continue;
+                    }
+                    if (key.length < MIN_KEY_BYTES) {
+                        Debug.logError("Ignoring claims key " + kid + " of tenant " + tenantId + ", it is shorter than "
+                                + MIN_KEY_BYTES + " bytes", MODULE);
+                        continue;
+                    }
+                    KEYS.computeIfAbsent(tenantId, k -> new HashMap<>()).put(kid, key);
+                } else if (name.startsWith(CURRENT_KID_PREFIX)) {
+                    CURRENT_KIDS.put(name.substring(CURRENT_KID_PREFIX.length()), value);
+                }
+            }
+        }
+        PRUNER.scheduleWithFixedDelay(() -> {
+            try {
+                pruneRevocations();
+            } catch (RuntimeException e) {
+                Debug.logError(e, "Error pruning the claims revocations", MODULE);
+            }
+        }, PRUNE_INTERVAL, PRUNE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private ClaimsToken() { }
+
+    /**
+     * Outcome of a verification, the claims are only set for a valid token
+     */
+    public static final class Verification {
+        private final boolean valid;
+        private final String errorMessage;
+        private final Map<String, Object> claims;
+
+        private Verification(boolean valid, String errorMessage, Map<String, Object> claims) {
+            this.valid = valid;
+            this.errorMessage = errorMessage;
+            this.claims = claims;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        public Map<String, Object> getClaims() {
+            return claims;
+        }
+
+        public Map<String, Object> getUserInfo() {
+            return claims != null ? UtilGenerics.cast(claims.get("userInfo")) : null;
+        }
+
+        public String getTenantId() {
+            return claims != null ? (String) claims.get("tid") : null;
+        }
+    }
+
+    /**
+     * Token issued for a user and the time it expires at
+     */
+    public static final class Issued {
+        private final String token;
+        private final long expiresAt;
+
+        private Issued(String token, long expiresAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        /** Expiry in milliseconds since the epoch */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * The UserLogin claims of the last token issued for a user
+     */
+    private static final class IssuedClaims {
+        private final String partyId;
+        private final boolean enabled;
+        private final boolean hasLoggedOut;
+        private final long issuedAt;
+
+        private IssuedClaims(Map<String, Object> userInfo, long issuedAt) {
+            this.partyId = (String) userInfo.get("partyId");
+            this.enabled = Boolean.TRUE.equals(userInfo.get("enabled"));
+            this.hasLoggedOut = Boolean.TRUE.equals(userInfo.get("hasLoggedOut"));
+            this.issuedAt = issuedAt;
+        }
+    }
+
+    /**
+     * Sign the claims of a user info entry, returns null when no signing key is configured for its tenant
+     */
+    public static Issued issue(UserInfoCache.Entry entry) {
+        Map<String, Object> userInfo = entry.getUserInfoView();
+        String tenantId = (String) userInfo.get("tenantId");
+        String keyTenant = keyTenant(tenantId);
+        String kid = CURRENT_KIDS.get(keyTenant);
+        Map<String, byte[]> tenantKeys = KEYS.get(keyTenant);
+        byte[] key = kid != null && tenantKeys != null ? tenantKeys.get(kid) : null;
+        if (key == null) {
+            Debug.logWarning("No claims signing key configured for tenant " + tenantId + ", no claims token issued", MODULE);
+            return null;
+        }
+        long issuedAtMillis = System.currentTimeMillis();
+        long issuedAt = issuedAtMillis / 1000L;
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("alg", "HS256");
+        header.put("typ", "JWT");
+        header.put("kid", kid);
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("sub", entry.getUserLoginId());
+        payload.put("tid", tenantId);
+        payload.put("iat", issuedAt);
+        payload.put("exp", issuedAt + TTL_SECONDS);
+        payload.put("iatMillis", issuedAtMillis);
+        if (entry.getContactMechId() != null) {
+            payload.put("cmid", entry.getContactMechId());
+        }
+        payload.put("userInfo", userInfo);
+        try {
+            String signingInput = encode(JSON.from(header).toString()) + "." + encode(JSON.from(payload).toString());
+            ISSUED_CLAIMS.put(revocationKey(tenantId, "user", entry.getUserLoginId()), new IssuedClaims(userInfo, issuedAtMillis));
+            return new Issued(signingInput + "." + ENCODER.encodeToString(sign(key, signingInput)), (issuedAt + TTL_SECONDS) * 1000L);
+        } catch (IOException | GeneralSecurityException e) {
+            Debug.logError(e, "Unable to issue claims token", MODULE);
+            return null;
+        }
+    }
+
+    /**
+     * Check the signature, expiry and revocation of a token
+     */
+    public static Verification verify(String token) {
+        String[] parts = token != null ? token.split("\\.", -1) : new String[0];
+        if (parts.length != 3) {
+            return invalid("Malformed claims token");
+        }
+        Map<String, Object> header;
+        Map<String, Object> claims;
+        try {
+            header = UtilGenerics.cast(JSON.from(decode(parts[0])).toObject(Map.class));
+            claims = UtilGenerics.cast(JSON.from(decode(parts[1])).toObject(Map.class));
+        } catch (IOException | IllegalArgumentException e) {
+            return invalid("Malformed claims token");
+        }
+        if (!"HS256".equals(header.get("alg")) || !(claims.get("tid") instanceof String)
+                || !(claims.get("iat") instanceof Number) || !(claims.get("exp") instanceof Number)) {
+            return invalid("Malformed claims token");
+        }
+
+        String tenantId = (String) claims.get("tid");
+        Map<String, byte[]> tenantKeys = KEYS.get(keyTenant(tenantId));
+        byte[] key = tenantKeys != null ? tenantKeys.get(header.get("kid")) : null;
+        if (key == null) {
+            return invalid("Unknown claims token key");
+        }
+        try {
+            byte[] signature = DECODER.decode(parts[2]);
+            if (!MessageDigest.isEqual(signature, sign(key, parts[0] + "." + parts[1]))) {
+                return invalid("Invalid claims token signature");
+            }
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            return invalid("Invalid claims token signature");
+        }
+
+        long now = System.currentTimeMillis();
+        if (((Number) claims.get("exp")).longValue() * 1000L <= now) {
+            return invalid("Claims token expired");
+        }
+        long issuedAt = claims.get("iatMillis") instanceof Number ? ((Number) claims.get("iatMillis")).longValue()
+                : ((Number) claims.get("iat")).longValue() * 1000L;
+        Map<String, Object> userInfo = UtilGenerics.cast(claims.get("userInfo"));
+        if (isRevoked(tenantId, "tenant", null, issuedAt)
+                || isRevoked(tenantId, "user", claims.get("sub"), issuedAt)
+                || (userInfo != null && isRevoked(tenantId, "party", userInfo.get("partyId"), issuedAt))
+                || (userInfo != null && isRevoked(tenantId, "party", userInfo.get("organizationPartyId"), issuedAt))
+                || isRevoked(tenantId, "contactMech", claims.get("cmid"), issuedAt)) {
+            return invalid("Claims token revoked");
+        }
+        return new Verification(true, null, claims);
+    }
+
+    /**
+     * Refuse the tokens issued so far for a user, a party (person or organization) or a contact mech of a tenant,
+     * any of the ids may be null
+     */
+    public static void revoke(String tenantId, String userLoginId, String partyId, String contactMechId) {
+        long now = System.currentTimeMillis();
+        if (userLoginId != null) {
+            REVOKED_BEFORE.put(revocationKey(tenantId, "user", userLoginId), now);
+        }
+        if (partyId != null) {
+            REVOKED_BEFORE.put(revocationKey(tenantId, "party", partyId), now);
+        }
+        if (contactMechId != null) {
+            REVOKED_BEFORE.put(revocationKey(tenantId, "contactMech", contactMechId), now);
+        }
+    }
+
+    /**
+     * Revoke the tokens of a user after a store of its UserLogin, only when the stored partyId or enabled differs
+     * from the claims of the last token issued for the user, or when the store logs the user out. Without a token
+     * issued by this instance during the last token lifetime, there is nothing to revoke.
+     */
+    public static void userLoginChanged(String tenantId, String userLoginId, String partyId, String enabled, String hasLoggedOut) {
+        IssuedClaims issued = ISSUED_CLAIMS.get(revocationKey(tenantId, "user", userLoginId));
+        if (issued == null) {
+            return;
+        }
+        if (!Objects.equals(issued.partyId, partyId) || issued.enabled != "Y".equals(enabled)
+                || (!issued.hasLoggedOut && "Y".equals(hasLoggedOut))) {
+            revoke(tenantId, userLoginId, null, null);
+        }
+    }
+
+    /**
+     * Remove the revocations and issued claims older than a token lifetime, the tokens issued before them
+     * have expired anyway
+     */
+    private static void pruneRevocations() {
+        long expired = System.currentTimeMillis() - TTL_SECONDS * 1000L;
+        REVOKED_BEFORE.values().removeIf(revokedBefore -> revokedBefore < expired);
+        ISSUED_CLAIMS.values().removeIf(issued -> issued.issuedAt < expired);
+    }
+
+    /**
+     * Refuse all the tokens issued so far for a tenant
+     */
+    public static void revokeTenant(String tenantId) {
+        REVOKED_BEFORE.put(revocationKey(tenantId, "tenant", null), System.currentTimeMillis());
+    }
+
+    private static boolean isRevoked(String tenantId, String kind, Object id, long issuedAt) {
+        if (id == null && !"tenant".equals(kind)) {
+            return false;
+        }
+        Long revokedBefore = REVOKED_BEFORE.get(revocationKey(tenantId, kind, id));
+        // A token issued in the millisecond of a revocation may have been built from the revoked rows
+        return revokedBefore != null && issuedAt <= revokedBefore;
+    }
+
+    private static String revocationKey(String tenantId, String kind, Object id) {
+        return tenantId + "::" + kind + "::" + id;
+    }
+
+    private static String keyTenant(String tenantId) {
+        return tenantId != null && KEYS.containsKey(tenantId) ? tenantId : DEFAULT_TENANT;
+    }
+
+    private static byte[] sign(byte[] key, String signingInput) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(signingInput.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String encode(String json) {
+        return ENCODER.encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String part) {
+        return new String(DECODER.decode(part), StandardCharsets.UTF_8);
+    }
+
+    private static Verification invalid(String errorMessage) {
+        return new Verification(false, errorMessage, null);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.common.login.LoginServices;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+
+/**
+ * Fast credential verification used by validateUserCredentials when
+ * <code>credentials.verification.mode</code> is <code>fast</code>
+ *
+ * The UserLogin and the user profile are read with one AuthExtUserProfile query, the password
+ * is compared against the stored hash on the {@link PasswordHashPool} and the outcome is handed
+ * to {@link LoginAccounting}, which writes it behind. The disabled account, re-enable after login.disable.minutes and
+ * max.failed.logins rules of LoginServices.userLogin apply. Only passwords stored in OFBiz
+ * are supported, external authenticators configured for LoginServices are not consulted.
+ */
+public final class CredentialVerifier {
+
+    private static final String RESOURCE = "authextension";
+
+    private static final boolean FAST_MODE = "fast".equals(UtilProperties.getPropertyValue(RESOURCE, "credentials.verification.mode", "strict"));
+
+    private CredentialVerifier() { }
+
+    /**
+     * Outcome of a verification, the user info entry is only set for valid credentials
+     */
+    public static final class Result {
+        private final boolean valid;
+        private final String errorMessage;
+        private final UserInfoCache.Entry entry;
+
+        private Result(boolean valid, String errorMessage, UserInfoCache.Entry entry) {
+            this.valid = valid;
+            this.errorMessage = errorMessage;
+            this.entry = entry;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        public UserInfoCache.Entry getEntry() {
+            return entry;
+        }
+    }
+
+    public static boolean isFastMode() {
+        return FAST_MODE;
+    }
+
+    public static Result verify(Delegator delegator, String userLoginId, String password) throws GenericEntityException {
+        long generation = UserInfoCache.generation();
+        List<GenericValue> rows = UserProfileQuery.findLoginRows(delegator, userLoginId);
+        if (UtilValidate.isEmpty(rows)) {
+            return new Result(false, "User not found", null);
+        }
+        GenericValue userLogin = rows.get(0);
+        Timestamp now = UtilDateTime.nowTimestamp();
+
+        boolean reEnable = false;
+        if ("N".equals(userLogin.getString("enabled"))) {
+            Timestamp disabledDateTime = userLogin.getTimestamp("disabledDateTime");
+            long disableMinutes = UtilProperties.getPropertyAsLong("security", "login.disable.minutes", 5L);
+            if (disabledDateTime == null || disableMinutes <= 0
+                    || disabledDateTime.getTime() + disableMinutes * 60000L > now.getTime()) {
+                return new Result(false, "User account is disabled", null);
+            }
+            reEnable = true;
+        } else {
+            long maxFailedLogins = LoginAccounting.getMaxFailedLogins();
+            if (maxFailedLogins > 0 && LoginAccounting.getFailedLogins(delegator, userLogin) >= maxFailedLogins) {
+                // Disabled by a failure that is being written
+                return new Result(false, "User account is disabled", null);
+            }
+        }
+
+        boolean useEncryption = "true".equals(EntityUtilProperties.getPropertyValue("security", "password.encrypt", delegator));
+        String currentPassword = userLogin.getString("currentPassword");
+        if (!PasswordHashPool.execute(() -> LoginServices.checkPassword(currentPassword, useEncryption, password))) {
+            LoginAccounting.recordFailure(delegator, userLogin, reEnable, password);
+            return new Result(false, "Password incorrect", null);
+        }
+        if ("Y".equals(userLogin.getString("requirePasswordChange"))) {
+            return new Result(false, "Password change required", null);
+        }
+        LoginAccounting.recordSuccess(delegator, userLogin, reEnable);
+
+        UserInfoCache.Entry entry = UserProfileQuery.toEntry(delegator, rows, now);
+        if (!reEnable) {
+            UserInfoCache.put(entry, generation);
+        }
+        return new Result(true, null, entry);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.DelegatorFactory;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * Write-behind bookkeeping of logins verified by {@link CredentialVerifier}
+ *
+ * Outcomes are aggregated per user in memory and written by a background thread every
+ * <code>credentials.writeBehind.interval</code> milliseconds: one UserLogin update per user
+ * (successiveFailedLogins, hasLoggedOut, enabled) and the UserLoginHistory rows, following
+ * the rules of LoginServices.userLogin. A successful login of a user without failed logins
+ * writes nothing to UserLogin.
+ *
+ * The failure that reaches <code>max.failed.logins</code> is written synchronously, so that
+ * the account is disabled in the database right away. Until then the pending failures count
+ * towards the limit through {@link #getFailedLogins}.
+ */
+public final class LoginAccounting {
+
+    private static final String MODULE = LoginAccounting.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    private static final long INTERVAL = UtilProperties.getPropertyAsLong(RESOURCE, "credentials.writeBehind.interval", 1000L);
+    private static final int MAX_PENDING = UtilProperties.getPropertyAsInteger(RESOURCE, "credentials.writeBehind.maxPending", 10000);
+
+    private static final Map<String, PendingLogins> PENDING = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "auth-extension-login-accounting");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        FLUSHER.scheduleWithFixedDelay(LoginAccounting::flush, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(LoginAccounting::flush, "auth-extension-login-accounting-shutdown"));
+    }
+
+    private LoginAccounting() { }
+
+    /**
+     * Logins of one user since the last flush
+     */
+    private static final class PendingLogins {
+        private final String delegatorName;
+        private final String userLoginId;
+        private final String partyId;
+        private final List<GenericValue> history = new ArrayList<>();
+        /** A successful login happened, the stored failure count restarts from 0 */
+        private boolean reset;
+        private boolean reEnable;
+        private int failures;
+        /** Set once taken for writing, later logins go to a new instance */
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        private PendingLogins(String delegatorName, String userLoginId, String partyId) {
+            this.delegatorName = delegatorName;
+            this.userLoginId = userLoginId;
+            this.partyId = partyId;
+        }
+    }
+
+    /**
+     * Returns the number of successive failed logins of the user, counting the failures not written yet
+     */
+    public static long getFailedLogins(Delegator delegator, GenericValue userLogin) {
+        long stored = userLogin.get("successiveFailedLogins") != null ? userLogin.getLong("successiveFailedLogins") : 0L;
+        PendingLogins pending = PENDING.get(key(delegator.getDelegatorName(), userLogin.getString("userLoginId")));
+        if (pending == null) {
+            return stored;
+        }
+        synchronized (pending) {
+            return (pending.reset ? 0L : stored) + pending.failures;
+        }
+    }
+
+    public static long getMaxFailedLogins() {
+        return UtilProperties.getPropertyAsLong("security", "max.failed.logins", 3L);
+    }
+
+    /**
+     * Record a successful login. <code>reEnable</code> is set when the account was disabled and its
+     * login.disable.minutes have passed.
+     */
+    public static void recordSuccess(Delegator delegator, GenericValue userLogin, boolean reEnable) {
+        boolean unchanged = !reEnable && getFailedLogins(delegator, userLogin) == 0L
+                && !"Y".equals(userLogin.getString("hasLoggedOut"));
+        if (unchanged && !storeHistory()) {
+            return;
+        }
+        record(delegator, userLogin, true, reEnable, null);
+    }
+
+    /**
+     * Record a failed login, the failure reaching max.failed.logins disables the account synchronously
+     */
+    public static void recordFailure(Delegator delegator, GenericValue userLogin, boolean reEnable, String passwordUsed)
+            throws GenericEntityException {
+        long maxFailedLogins = getMaxFailedLogins();
+        boolean disable = maxFailedLogins > 0 && (reEnable ? 1L : getFailedLogins(delegator, userLogin) + 1) >= maxFailedLogins;
+        PendingLogins pending = record(delegator, userLogin, false, reEnable, passwordUsed);
+        if (disable && pending != null) {
+            Debug.logWarning("User " + userLogin.getString("userLoginId") + " reached " + maxFailedLogins
+                    + " failed logins, disabling the account", MODULE);
+            PendingLogins taken = take(pending);
+            // Null when the flusher took it first, its write holds this failure and disables the account
+            if (taken != null) {
+                write(taken);
+            }
+        }
+    }
+
+    private static PendingLogins record(Delegator delegator, GenericValue userLogin, boolean successful, boolean reEnable,
+            String passwordUsed) {
+        String delegatorName = delegator.getDelegatorName();
+        String userLoginId = userLogin.getString("userLoginId");
+        String key = key(delegatorName, userLoginId);
+        while (true) {
+            PendingLogins pending = PENDING.get(key);
+            if (pending == null) {
+                if (PENDING.size() >= MAX_PENDING) {
+                    // Too many users waiting for the flusher, write this one directly
+                    pending = new PendingLogins(delegatorName, userLoginId, userLogin.getString("partyId"));
+                    add(pending, delegator, successful, reEnable, passwordUsed);
+                    writeQuietly(pending);
+                    return null;
+                }
+                PENDING.putIfAbsent(key, new PendingLogins(delegatorName, userLoginId, userLogin.getString("partyId")));
+                continue;
+            }
+            synchronized (pending) {
+                if (!pending.taken.get()) {
+                    add(pending, delegator, successful, reEnable, passwordUsed);
+                    return pending;
+                }
+            }
+            PENDING.remove(key, pending);
+        }
+    }
+
+    private static void add(PendingLogins pending, Delegator delegator, boolean successful, boolean reEnable, String passwordUsed) {
+        if (reEnable) {
+            pending.reEnable = true;
+            pending.reset = true;
+            pending.failures = 0;
+        }
+        if (successful) {
+            pending.reset = true;
+            pending.failures = 0;
+        } else {
+            pending.failures++;
+        }
+        if (storeHistory()) {
+            Timestamp fromDate = UtilDateTime.nowTimestamp();
+            if (!pending.history.isEmpty()) {
+                // UserLoginHistory is keyed by userLoginId and fromDate
+                Timestamp last = pending.history.get(pending.history.size() - 1).getTimestamp("fromDate");
+                if (!fromDate.after(last)) {
+                    fromDate = new Timestamp(last.getTime() + 1);
+                }
+            }
+            GenericValue history = delegator.makeValue("UserLoginHistory", UtilMisc.toMap("userLoginId", pending.userLoginId,
+                    "fromDate", fromDate, "partyId", pending.partyId, "successfulLogin", successful ? "Y" : "N"));
+            if (!successful && passwordUsed != null
+                    && UtilProperties.propertyValueEqualsIgnoreCase("security", "store.login.history.incorrect.password", "true")) {
+                history.set("passwordUsed", passwordUsed);
+            }
+            pending.history.add(history);
+        }
+    }
+
+    /**
+     * Claim <code>pending</code> for writing, returns null when another thread already claimed it
+     */
+    private static PendingLogins take(PendingLogins pending) {
+        boolean claimed;
+        // Under the lock of record, so that no login is added once the write began
+        synchronized (pending) {
+            claimed = pending.taken.compareAndSet(false, true);
+        }
+        if (!claimed) {
+            return null;
+        }
+        PENDING.remove(key(pending.delegatorName, pending.userLoginId), pending);
+        return pending;
+    }
+
+    /**
+     * Write all pending logins, called by the background thread and on shutdown
+     */
+    public static void flush() {
+        for (PendingLogins pending : new ArrayList<>(PENDING.values())) {
+            PendingLogins taken = take(pending);
+            if (taken != null) {
+                writeQuietly(taken);
+            }
+        }
+    }
+
+    private static void writeQuietly(PendingLogins pending) {
+        try {
+            write(pending);
+        } catch (GenericEntityException | RuntimeException e) {
+            Debug.logError(e, "Error writing login accounting for " + pending.userLoginId, MODULE);
+        }
+    }
+
+    private static void write(PendingLogins pending) throws GenericEntityException {
+        AuthExtensionMetrics.timeQuery("UserLogin.accounting", () -> {
+            writeTransaction(pending);
+            return null;
+        });
+    }
+
+    private static void writeTransaction(PendingLogins pending) throws GenericEntityException {
+        Delegator delegator = DelegatorFactory.getDelegator(pending.delegatorName);
+        boolean beganTransaction = false;
+        try {
+            beganTransaction = TransactionUtil.begin();
+            GenericValue userLogin = EntityQuery.use(delegator)
+                .from("UserLogin")
+                .where("userLoginId", pending.userLoginId)
+                .queryOne();
+            if (userLogin != null) {
+                long stored = userLogin.get("successiveFailedLogins") != null ? userLogin.getLong("successiveFailedLogins") : 0L;
+                long failedLogins = (pending.reset ? 0L : stored) + pending.failures;
+                boolean changed = failedLogins != stored;
+                userLogin.set("successiveFailedLogins", failedLogins);
+                if (pending.reset && !"N".equals(userLogin.getString("hasLoggedOut"))) {
+                    userLogin.set("hasLoggedOut", "N");
+                    changed = true;
+                }
+                if (pending.reEnable) {
+                    userLogin.set("enabled", "Y");
+                    userLogin.set("disabledDateTime", null);
+                    changed = true;
+                }
+                long maxFailedLogins = getMaxFailedLogins();
+                if (maxFailedLogins > 0 && failedLogins >= maxFailedLogins && !"N".equals(userLogin.getString("enabled"))) {
+                    userLogin.set("enabled", "N");
+                    userLogin.set("disabledDateTime", UtilDateTime.nowTimestamp());
+                    changed = true;
+                }
+                if (changed) {
+                    userLogin.store();
+                }
+            }
+            for (GenericValue history : pending.history) {
+                delegator.create(history);
+            }
+            TransactionUtil.commit(beganTransaction);
+        } catch (GenericEntityException e) {
+            try {
+                TransactionUtil.rollback(beganTransaction, "Error writing login accounting", e);
+            } catch (GenericTransactionException e2) {
+                Debug.logError(e2, "Could not rollback login accounting transaction", MODULE);
+            }
+            throw e;
+        }
+    }
+
+    private static boolean storeHistory() {
+        return !UtilProperties.propertyValueEqualsIgnoreCase("security", "store.login.history", "false");
+    }
+
+    private static String key(String delegatorName, String userLoginId) {
+        return delegatorName + "::" + userLoginId;
+    }
+}
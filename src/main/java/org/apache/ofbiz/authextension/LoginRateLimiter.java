@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ofbiz.base.util.UtilProperties;
+
+/**
+ * Rate limiter for credential validation, per userLoginId and per client address
+ *
+ * Each dimension is a fixed array of token buckets, so memory does not grow with the number of
+ * distinct keys. A key is hashed with a random seed onto two buckets and an attempt is refused
+ * only when both are empty; a legitimate key sharing one bucket with an attacker's key therefore
+ * keeps its other bucket. Buckets are updated lock-free, the refill time and the tokens of a
+ * bucket being packed in one long.
+ *
+ * The client dimension is off by default: the usual caller is an identity provider such as
+ * Keycloak relaying every login from its own address, which a per-client limit would cap as a
+ * whole. When it is on, the addresses in ratelimit.client.trusted are not limited per client.
+ */
+public final class LoginRateLimiter {
+
+    private static final String RESOURCE = "authextension";
+
+    public static final String ERROR_CODE = "RATE_LIMITED";
+    public static final String ERROR_MESSAGE = "Too many login attempts, please retry later";
+
+    private static final boolean ENABLED = UtilProperties.getPropertyAsBoolean(RESOURCE, "ratelimit.enabled", true);
+    private static final int STRIPES = UtilProperties.getPropertyAsInteger(RESOURCE, "ratelimit.stripes", 65536);
+    private static final boolean CLIENT_ENABLED = UtilProperties.getPropertyAsBoolean(RESOURCE, "ratelimit.client.enabled", false);
+    private static final Set<String> TRUSTED_CLIENTS = parseAddresses(UtilProperties.getPropertyValue(RESOURCE,
+            "ratelimit.client.trusted", ""));
+
+    private static final TokenBuckets USERS = new TokenBuckets(
+            UtilProperties.getPropertyAsInteger(RESOURCE, "ratelimit.user.capacity", 10),
+            UtilProperties.getPropertyAsDouble(RESOURCE, "ratelimit.user.refillPerSecond", 0.5));
+    private static final TokenBuckets CLIENTS = new TokenBuckets(
+            UtilProperties.getPropertyAsInteger(RESOURCE, "ratelimit.client.capacity", 50),
+            UtilProperties.getPropertyAsDouble(RESOURCE, "ratelimit.client.refillPerSecond", 5.0));
+
+    private LoginRateLimiter() { }
+
+    public static boolean tryAcquireUser(String userLoginId) {
+        return !ENABLED || userLoginId == null || USERS.tryAcquire(userLoginId);
+    }
+
+    public static boolean tryAcquireClient(String clientAddress) {
+        return !ENABLED || !CLIENT_ENABLED || clientAddress == null || TRUSTED_CLIENTS.contains(clientAddress)
+                || CLIENTS.tryAcquire(clientAddress);
+    }
+
+    public static long getUserRejectedCount() {
+        return USERS.rejected.sum();
+    }
+
+    public static long getClientRejectedCount() {
+        return CLIENTS.rejected.sum();
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", ENABLED);
+        stats.put("clientEnabled", CLIENT_ENABLED);
+        stats.put("stripes", STRIPES);
+        stats.put("userRejectedCount", getUserRejectedCount());
+        stats.put("clientRejectedCount", getClientRejectedCount());
+        return stats;
+    }
+
+    private static Set<String> parseAddresses(String value) {
+        Set<String> addresses = new HashSet<>();
+        for (String address : value.split(",")) {
+            if (!address.trim().isEmpty()) {
+                addresses.add(address.trim());
+            }
+        }
+        return Collections.unmodifiableSet(addresses);
+    }
+
+    /**
+     * Fixed size set of token buckets. The state of a bucket holds the milliseconds since
+     * {@link #EPOCH} of its last refill in the upper 42 bits and its tokens, in thousandths,
+     * in the lower 22 bits. A zero state is a full bucket.
+     */
+    private static final class TokenBuckets {
+        private static final long EPOCH = System.currentTimeMillis() - 1;
+        private static final int TOKEN_BITS = 22;
+        private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+        private static final long ONE_TOKEN = 1000L;
+
+        private final AtomicLongArray states;
+        private final int mask;
+        private final int seed = new SecureRandom().nextInt();
+        private final long capacity;
+        private final double refillPerMilli;
+        private final LongAdder rejected = new LongAdder();
+
+        private TokenBuckets(int capacity, double refillPerSecond) {
+            int size = Integer.highestOneBit(Math.max(2, STRIPES - 1)) << 1;
+            this.states = new AtomicLongArray(size);
+            this.mask = size - 1;
+            this.capacity = Math.min(Math.max(1, capacity) * ONE_TOKEN, TOKEN_MASK);
+            this.refillPerMilli = refillPerSecond * ONE_TOKEN / 1000.0;
+        }
+
+        private boolean tryAcquire(String key) {
+            int hash = mix(key.hashCode() ^ seed);
+            long now = System.currentTimeMillis() - EPOCH;
+            boolean first = take(hash & mask, now);
+            boolean second = take(mix(hash + 0x61c88647) & mask, now);
+            if (first || second) {
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+
+        private boolean take(int index, long now) {
+            while (true) {
+                long state = states.get(index);
+                long tokens;
+                if (state == 0L) {
+                    tokens = capacity;
+                } else {
+                    long elapsed = Math.max(0L, now - (state >>> TOKEN_BITS));
+                    tokens = Math.min(capacity, (state & TOKEN_MASK) + (long) (elapsed * refillPerMilli));
+                }
+                boolean granted = tokens >= ONE_TOKEN;
+                if (granted) {
+                    tokens -= ONE_TOKEN;
+                } else if (state != 0L && (state & TOKEN_MASK) == tokens) {
+                    // Nothing refilled yet, keep the refill time so fractions keep accumulating
+                    return false;
+                }
+                long next = (now << TOKEN_BITS) | tokens;
+                if (states.compareAndSet(index, state, next == 0L ? 1L : next)) {
+                    return granted;
+                }
+            }
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * Per-invocation memo of entity lookups
+ *
+ * One instance is created per service call and handed to the helpers building the
+ * response, so that each row is read at most once per request even when several
+ * parts of the response need it. The context also carries the deadline for lookups
+ * run through {@link ParallelLookups} and the {@link Trace} of the call. Instances must
+ * not outlive the request. Lookups are timed per entity in {@link AuthExtensionMetrics}.
+ */
+public final class LookupContext {
+
+    private final Delegator delegator;
+    private final Trace trace;
+    private final long deadline = ParallelLookups.newDeadline();
+    private final Map<String, Optional<GenericValue>> values = new ConcurrentHashMap<>();
+    private final Map<String, List<GenericValue>> lists = new ConcurrentHashMap<>();
+
+    public LookupContext(Delegator delegator) {
+        this(delegator, Trace.OFF);
+    }
+
+    public LookupContext(Delegator delegator, Trace trace) {
+        this.delegator = delegator;
+        this.trace = trace;
+    }
+
+    public Delegator getDelegator() {
+        return delegator;
+    }
+
+    public Trace getTrace() {
+        return trace;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Find a value by its single field primary key, returns null if it does not exist
+     */
+    public GenericValue findOne(String entityName, String pkFieldName, String pkValue) throws GenericEntityException {
+        String key = entityName + "|" + pkValue;
+        Optional<GenericValue> value = values.get(key);
+        if (value == null) {
+            value = Optional.ofNullable(AuthExtensionMetrics.timeQuery(entityName, () -> EntityQuery.use(delegator)
+                .from(entityName)
+                .where(pkFieldName, pkValue)
+                .queryOne()));
+            values.put(key, value);
+            trace.step("findOne", "entity", entityName, "found", value.isPresent());
+        }
+        return value.orElse(null);
+    }
+
+    /**
+     * Find all values of an entity having the given field value
+     */
+    public List<GenericValue> findList(String entityName, String fieldName, String fieldValue) throws GenericEntityException {
+        String key = entityName + "|" + fieldName + "|" + fieldValue;
+        List<GenericValue> list = lists.get(key);
+        if (list == null) {
+            list = AuthExtensionMetrics.timeQuery(entityName, () -> EntityQuery.use(delegator)
+                .from(entityName)
+                .where(fieldName, fieldValue)
+                .queryList());
+            lists.put(key, list);
+            trace.step("findList", "entity", entityName, "rows", list.size());
+        }
+        return list;
+    }
+
+    /**
+     * Record a value already read as part of another query, or its absence when <code>value</code> is null,
+     * so that a later {@link #findOne} for the same primary key does not go to the database
+     */
+    public void remember(String entityName, String pkValue, GenericValue value) {
+        values.putIfAbsent(entityName + "|" + pkValue, Optional.ofNullable(value));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.GenericEntityException;
+
+/**
+ * Optional concurrent execution of independent entity lookups
+ *
+ * When <code>lookup.parallel.enabled</code> is set, the branches handed to {@link #invokeAll}
+ * run on a bounded pool shared by the component, otherwise they run one after the other on
+ * the calling thread. Branches must do their own reads through the delegator of the request
+ * they belong to; they run outside of the caller's transaction, so only reads may be done.
+ * When the pool queue is full a branch runs on the calling thread instead of waiting.
+ */
+public final class ParallelLookups {
+
+    private static final String RESOURCE = "authextension";
+
+    private static final boolean ENABLED = UtilProperties.getPropertyAsBoolean(RESOURCE, "lookup.parallel.enabled", false);
+    private static final long TIMEOUT_MILLIS = UtilProperties.getPropertyAsLong(RESOURCE, "lookup.parallel.timeout", 5000L);
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        int threads = UtilProperties.getPropertyAsInteger(RESOURCE, "lookup.parallel.threads", 8);
+        int queueSize = UtilProperties.getPropertyAsInteger(RESOURCE, "lookup.parallel.queueSize", 256);
+        AtomicInteger threadCount = new AtomicInteger();
+        EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "auth-extension-lookup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private ParallelLookups() { }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Returns the deadline, in {@link System#nanoTime()} terms, for lookups of a request starting now
+     */
+    public static long newDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Run the branches and return their results in the same order. The first branch runs on the calling
+     * thread. A GenericEntityException thrown by a branch is rethrown as is, and a branch still running at
+     * <code>deadline</code> is cancelled and reported as a GenericEntityException.
+     */
+    public static <T> List<T> invokeAll(List<Callable<T>> branches, long deadline) throws GenericEntityException {
+        List<T> results = new ArrayList<>(branches.size());
+        if (!ENABLED || branches.size() < 2) {
+            for (Callable<T> branch : branches) {
+                results.add(call(branch));
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(branches.size() - 1);
+        try {
+            for (Callable<T> branch : branches.subList(1, branches.size())) {
+                futures.add(EXECUTOR.submit(branch));
+            }
+            results.add(call(branches.get(0)));
+            for (Future<T> future : futures) {
+                results.add(future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+            return results;
+        } catch (TimeoutException e) {
+            throw new GenericEntityException("Entity lookups did not complete within " + TIMEOUT_MILLIS + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GenericEntityException("Interrupted while waiting for entity lookups", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GenericEntityException) {
+                throw (GenericEntityException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new GenericEntityException(cause);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static <T> T call(Callable<T> branch) throws GenericEntityException {
+        try {
+            return branch.call();
+        } catch (GenericEntityException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GenericEntityException(e);
+        }
+    }
+}
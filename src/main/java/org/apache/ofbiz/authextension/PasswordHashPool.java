@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.GenericEntityException;
+
+/**
+ * Bulkhead for password verification
+ *
+ * Password hashing is the most CPU intensive work of the component. It runs on this bounded
+ * pool rather than on the servlet request thread, so that a login spike cannot take every
+ * core away from the read-only services. When the queue is full, or the work does not start
+ * within <code>credentials.hashPool.timeout</code>, a {@link RejectedExecutionException} is thrown
+ * right away instead of letting requests pile up. Work that timed out is dropped before it starts,
+ * and work that started is waited for: in strict mode it includes the failed login count and the
+ * login history of LoginServices.userLogin, so a refused attempt is never counted.
+ */
+public final class PasswordHashPool {
+
+    private static final String RESOURCE = "authextension";
+
+    public static final String ERROR_CODE = "SERVER_BUSY";
+    public static final String ERROR_MESSAGE = "Credential verification is busy, please retry later";
+
+    private static final long TIMEOUT_MILLIS = UtilProperties.getPropertyAsLong(RESOURCE, "credentials.hashPool.timeout", 10000L);
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    private static final LongAdder REJECTED = new LongAdder();
+    private static final AuthExtensionMetrics.Timer QUEUE_WAIT = AuthExtensionMetrics.stage("passwordHash.queueWait");
+    private static final AuthExtensionMetrics.Timer HASH = AuthExtensionMetrics.stage("passwordHash.hash");
+
+    static {
+        int threads = UtilProperties.getPropertyAsInteger(RESOURCE, "credentials.hashPool.threads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        int queueSize = UtilProperties.getPropertyAsInteger(RESOURCE, "credentials.hashPool.queueSize", 64);
+        AtomicInteger threadCount = new AtomicInteger();
+        EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "auth-extension-password-hash-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private PasswordHashPool() { }
+
+    /**
+     * Run the verification on the pool and wait for its result
+     * @throws RejectedExecutionException if the queue is full or the verification did not start in time
+     * @throws GenericEntityException if the verification failed
+     */
+    public static <T> T execute(Callable<T> verification) throws GenericEntityException {
+        long submitted = System.nanoTime();
+        // Claimed by the pool thread to run the verification, or by the caller to give up on it
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<T> future;
+        try {
+            future = EXECUTOR.submit(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return null;
+                }
+                long started = System.nanoTime();
+                QUEUE_WAIT.record(started - submitted, false);
+                boolean failed = true;
+                try {
+                    T value = verification.call();
+                    failed = false;
+                    return value;
+                } finally {
+                    HASH.record(System.nanoTime() - started, failed);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED.increment();
+            throw e;
+        }
+        try {
+            try {
+                return future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (claimed.compareAndSet(false, true)) {
+                    future.cancel(false);
+                    REJECTED.increment();
+                    throw new RejectedExecutionException("Password verification did not start within " + TIMEOUT_MILLIS + " ms");
+                }
+                // Already running and possibly counted, its outcome is the answer
+                return future.get();
+            }
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new GenericEntityException("Interrupted while waiting for password verification", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GenericEntityException) {
+                throw (GenericEntityException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new GenericEntityException(cause);
+        }
+    }
+
+    public static int getQueueDepth() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    public static int getQueueCapacity() {
+        return EXECUTOR.getQueue().size() + EXECUTOR.getQueue().remainingCapacity();
+    }
+
+    public static long getRejectedCount() {
+        return REJECTED.sum();
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("threads", EXECUTOR.getMaximumPoolSize());
+        stats.put("activeThreads", EXECUTOR.getActiveCount());
+        stats.put("queueDepth", getQueueDepth());
+        stats.put("queueCapacity", getQueueCapacity());
+        stats.put("completedCount", HASH.total().getCount());
+        stats.put("rejectedCount", getRejectedCount());
+        stats.put("queueWait", QUEUE_WAIT.toMap());
+        stats.put("hash", HASH.toMap());
+        return stats;
+    }
+}
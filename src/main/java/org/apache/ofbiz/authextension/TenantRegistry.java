@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.DelegatorFactory;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.security.Security;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceContainer;
+
+/**
+ * Registry of the tenants the services can be routed to
+ *
+ * A tenantId resolves to the tenant delegator, the Tenant row of the base delegator and the PartyAttributes
+ * of the tenant organization (<code>tenant.organizationPartyId</code>), kept in a concurrent map so that
+ * routing a call costs a map lookup instead of a Tenant read and a delegator lookup. Entries are reloaded
+ * after <code>tenant.registry.refresh</code> milliseconds; a tenant that is unknown or disabled resolves to
+ * null and is not kept. The registry is filled with the enabled tenants at startup by
+ * {@link TenantRegistryContainer}.
+ *
+ * Callers are authenticated against the delegator of the webapp, so only their own tenant is open to them;
+ * routing to another tenant needs the <code>tenant.access.permission</code> permission, see
+ * {@link #isAccessAllowed}.
+ */
+public final class TenantRegistry {
+
+    private static final String MODULE = TenantRegistry.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    /** tenantId of the base delegator */
+    public static final String DEFAULT_TENANT = "default";
+
+    private static final long REFRESH = UtilProperties.getPropertyAsLong(RESOURCE, "tenant.registry.refresh", 300000L);
+    private static final String ORGANIZATION_PARTY_ID = UtilProperties.getPropertyValue(RESOURCE,
+            "tenant.organizationPartyId", "Company");
+    private static final String DISPATCHER_NAME = "auth-extension";
+    private static final String ACCESS_PERMISSION = UtilProperties.getPropertyValue(RESOURCE, "tenant.access.permission",
+            "ENTITY_MAINT");
+
+    /** Tenants by base delegator name and tenantId */
+    private static final Map<String, Tenant> TENANTS = new ConcurrentHashMap<>();
+    private static final LongAdder LOADS = new LongAdder();
+    private static final LongAdder UNKNOWN = new LongAdder();
+
+    private TenantRegistry() { }
+
+    /**
+     * A tenant resolved by the registry
+     */
+    public static final class Tenant {
+        private final String tenantId;
+        private final String tenantName;
+        private final Delegator delegator;
+        private final Map<String, String> attributes;
+        private final long loadedAt;
+        private volatile DispatchContext dispatchContext;
+
+        private Tenant(String tenantId, String tenantName, Delegator delegator, Map<String, String> attributes, long loadedAt) {
+            this.tenantId = tenantId;
+            this.tenantName = tenantName;
+            this.delegator = delegator;
+            this.attributes = attributes;
+            this.loadedAt = loadedAt;
+        }
+
+        public String getTenantId() {
+            return tenantId;
+        }
+
+        /** Name from the Tenant entity, null for the default tenant */
+        public String getTenantName() {
+            return tenantName;
+        }
+
+        public Delegator getDelegator() {
+            return delegator;
+        }
+
+        /** PartyAttributes of the tenant organization by attrName, read only */
+        public Map<String, String> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * Dispatch context bound to the tenant delegator, for the services that need one. The dispatcher
+         * is only created on first use: most calls only need the delegator.
+         */
+        public DispatchContext getDispatchContext() {
+            DispatchContext result = dispatchContext;
+            if (result == null) {
+                result = ServiceContainer.getLocalDispatcher(DISPATCHER_NAME, delegator).getDispatchContext();
+                dispatchContext = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Resolve the tenant a call is routed to: <code>tenantId</code> of the installation of
+     * <code>delegator</code>, or the tenant of <code>delegator</code> itself when it is empty.
+     * Returns null if the tenant is unknown or disabled.
+     */
+    public static Tenant get(Delegator delegator, String tenantId) throws GenericEntityException {
+        if (UtilValidate.isEmpty(tenantId)) {
+            tenantId = getTenantId(delegator);
+        }
+        String key = delegator.getDelegatorBaseName() + "#" + tenantId;
+        Tenant tenant = TENANTS.get(key);
+        if (tenant != null && System.currentTimeMillis() - tenant.loadedAt < REFRESH) {
+            return tenant;
+        }
+        // Concurrent callers may load the same tenant twice, the last one wins
+        Delegator baseDelegator = UtilValidate.isEmpty(delegator.getDelegatorTenantId()) ? delegator
+                : DelegatorFactory.getDelegator(delegator.getDelegatorBaseName());
+        tenant = load(baseDelegator, tenantId);
+        if (tenant != null) {
+            TENANTS.put(key, tenant);
+        } else {
+            // Unknown tenants are not kept, so that made up tenantIds cannot fill the registry
+            TENANTS.remove(key);
+            UNKNOWN.increment();
+        }
+        return tenant;
+    }
+
+    /**
+     * Whether <code>userLogin</code>, authenticated against <code>delegator</code>, may route calls to
+     * <code>tenantId</code>: always for the tenant of <code>delegator</code> itself (an empty tenantId),
+     * otherwise only with the <code>tenant.access.permission</code> permission. Checked before the tenant is
+     * resolved, so that made up tenantIds of other callers cause no entity work.
+     */
+    public static boolean isAccessAllowed(Delegator delegator, Security security, GenericValue userLogin, String tenantId) {
+        if (UtilValidate.isEmpty(tenantId) || tenantId.equals(getTenantId(delegator))) {
+            return true;
+        }
+        return userLogin != null && security != null && security.hasPermission(ACCESS_PERMISSION, userLogin);
+    }
+
+    private static String getTenantId(Delegator delegator) {
+        return UtilValidate.isNotEmpty(delegator.getDelegatorTenantId()) ? delegator.getDelegatorTenantId() : DEFAULT_TENANT;
+    }
+
+    private static Tenant load(Delegator baseDelegator, String tenantId) throws GenericEntityException {
+        LOADS.increment();
+        Delegator delegator = baseDelegator;
+        String tenantName = null;
+        if (!DEFAULT_TENANT.equals(tenantId)) {
+            // Cached by the entity engine, misses included
+            GenericValue tenantValue = AuthExtensionMetrics.timeQuery("Tenant", () -> EntityQuery.use(baseDelegator)
+                .from("Tenant")
+                .where("tenantId", tenantId)
+                .cache()
+                .queryOne());
+            if (tenantValue == null || "Y".equals(tenantValue.getString("disabled"))) {
+                return null;
+            }
+            tenantName = tenantValue.getString("tenantName");
+            delegator = DelegatorFactory.getDelegator(baseDelegator.getDelegatorName() + "#" + tenantId);
+            if (delegator == null) {
+                Debug.logWarning("No delegator could be created for tenant " + tenantId, MODULE);
+                return null;
+            }
+        }
+
+        Delegator tenantDelegator = delegator;
+        List<GenericValue> partyAttributes = AuthExtensionMetrics.timeQuery("PartyAttribute.tenant", () -> EntityQuery.use(tenantDelegator)
+            .from("PartyAttribute")
+            .where("partyId", ORGANIZATION_PARTY_ID)
+            .orderBy("attrName")
+            .queryList());
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (GenericValue attribute : partyAttributes) {
+            attributes.put(attribute.getString("attrName"), attribute.getString("attrValue"));
+        }
+        return new Tenant(tenantId, tenantName, delegator, Collections.unmodifiableMap(attributes), System.currentTimeMillis());
+    }
+
+    /**
+     * Load the default tenant and every enabled tenant of the installation of <code>baseDelegator</code>,
+     * returns the number of tenants loaded. A tenant that fails to load is logged and left out.
+     */
+    public static int preload(Delegator baseDelegator) throws GenericEntityException {
+        List<GenericValue> tenants = EntityQuery.use(baseDelegator).from("Tenant").orderBy("tenantId").queryList();
+        int loaded = get(baseDelegator, DEFAULT_TENANT) != null ? 1 : 0;
+        for (GenericValue tenant : tenants) {
+            if ("Y".equals(tenant.getString("disabled"))) {
+                continue;
+            }
+            try {
+                if (get(baseDelegator, tenant.getString("tenantId")) != null) {
+                    loaded++;
+                }
+            } catch (GenericEntityException | RuntimeException e) {
+                Debug.logError(e, "Could not load tenant " + tenant.getString("tenantId"), MODULE);
+            }
+        }
+        return loaded;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("tenants", TENANTS.size());
+        stats.put("loads", LOADS.sum());
+        stats.put("unknown", UNKNOWN.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.List;
+
+import org.apache.ofbiz.base.container.Container;
+import org.apache.ofbiz.base.container.ContainerException;
+import org.apache.ofbiz.base.start.StartupCommand;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.DelegatorFactory;
+
+/**
+ * Preloads the {@link TenantRegistry} at startup
+ *
+ * The tenants are loaded on a background thread, so that startup does not wait for hundreds of tenant
+ * delegators; calls arriving before the preload is done load their tenant themselves.
+ */
+public class TenantRegistryContainer implements Container {
+
+    private static final String MODULE = TenantRegistryContainer.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    private String name;
+    private Thread preloadThread;
+
+    @Override
+    public void init(List<StartupCommand> ofbizCommands, String name, String configFile) throws ContainerException {
+        this.name = name;
+    }
+
+    @Override
+    public boolean start() throws ContainerException {
+        if (!UtilProperties.getPropertyAsBoolean(RESOURCE, "tenant.registry.preload", true)) {
+            return true;
+        }
+        String delegatorName = UtilProperties.getPropertyValue(RESOURCE, "tenant.registry.delegatorName", "default");
+        preloadThread = new Thread(() -> preload(delegatorName), "auth-extension-tenant-preload");
+        preloadThread.setDaemon(true);
+        preloadThread.start();
+        return true;
+    }
+
+    private static void preload(String delegatorName) {
+        long start = System.currentTimeMillis();
+        try {
+            Delegator delegator = DelegatorFactory.getDelegator(delegatorName);
+            if (delegator == null) {
+                Debug.logError("Tenant registry not preloaded, no delegator named " + delegatorName, MODULE);
+                return;
+            }
+            int loaded = TenantRegistry.preload(delegator);
+            Debug.logInfo("Tenant registry preloaded with " + loaded + " tenants in " + (System.currentTimeMillis() - start) + " ms", MODULE);
+        } catch (Exception e) {
+            Debug.logError(e, "Tenant registry preload failed, tenants are loaded on first use", MODULE);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (preloadThread != null) {
+            preloadThread.interrupt();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+
+/**
+ * Sampled step tracing of a service call
+ *
+ * A call is traced when it falls in the <code>trace.sampleRate</code> sample or when its userLoginId is
+ * listed in <code>trace.users</code>; both can be changed at runtime with the setAuthExtensionTrace service.
+ * A traced call gets a correlation id and logs each step as one line of <code>key=value</code> pairs with
+ * the time elapsed since the call started. Calls that are not traced share the {@link #OFF} instance and the
+ * step methods return before building anything, so the fixed-arity overloads are used rather than varargs
+ * or string concatenation at the call site. Callers only pass identifiers, never names, emails or passwords.
+ */
+public final class Trace {
+
+    private static final String RESOURCE = "authextension";
+
+    /** Trace of the calls that are not sampled, all steps are no-ops */
+    public static final Trace OFF = new Trace(null, null, null, 0L);
+
+    private static volatile double sampleRate = UtilProperties.getPropertyAsDouble(RESOURCE, "trace.sampleRate", 0.0);
+    private static volatile Set<String> users = parseUsers(UtilProperties.getPropertyValue(RESOURCE, "trace.users", ""));
+
+    private final String module;
+    private final String serviceName;
+    private final String id;
+    private final long startTime;
+
+    private Trace(String module, String serviceName, String id, long startTime) {
+        this.module = module;
+        this.serviceName = serviceName;
+        this.id = id;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Start the trace of a service call, returns {@link #OFF} unless the call is sampled or the user is traced
+     */
+    public static Trace start(String module, String serviceName, String userLoginId) {
+        boolean traced = userLoginId != null && !users.isEmpty() && users.contains(userLoginId);
+        if (!traced && (sampleRate <= 0.0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return OFF;
+        }
+        String id = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        Trace trace = new Trace(module, serviceName, id, System.nanoTime());
+        trace.step("start", "userLoginId", userLoginId);
+        return trace;
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    public static void setSampleRate(double rate) {
+        sampleRate = Math.max(0.0, Math.min(1.0, rate));
+    }
+
+    public static Set<String> getUsers() {
+        return users;
+    }
+
+    public static void setUsers(Collection<String> userLoginIds) {
+        users = Collections.unmodifiableSet(new HashSet<>(userLoginIds));
+    }
+
+    private static Set<String> parseUsers(String value) {
+        Set<String> userLoginIds = new HashSet<>();
+        for (String userLoginId : value.split(",")) {
+            if (!userLoginId.trim().isEmpty()) {
+                userLoginIds.add(userLoginId.trim());
+            }
+        }
+        return Collections.unmodifiableSet(userLoginIds);
+    }
+
+    public boolean isOn() {
+        return id != null;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void step(String step) {
+        if (id != null) {
+            log(begin(step));
+        }
+    }
+
+    public void step(String step, String key, Object value) {
+        if (id != null) {
+            log(append(begin(step), key, value));
+        }
+    }
+
+    public void step(String step, String key, long value) {
+        if (id != null) {
+            log(append(begin(step), key, value));
+        }
+    }
+
+    public void step(String step, String key1, Object value1, String key2, Object value2) {
+        if (id != null) {
+            log(append(append(begin(step), key1, value1), key2, value2));
+        }
+    }
+
+    public void step(String step, String key1, Object value1, String key2, long value2) {
+        if (id != null) {
+            log(append(append(begin(step), key1, value1), key2, value2));
+        }
+    }
+
+    public void step(String step, String key1, long value1, String key2, long value2) {
+        if (id != null) {
+            log(append(append(begin(step), key1, value1), key2, value2));
+        }
+    }
+
+    public void step(String step, String key1, Object value1, String key2, Object value2, String key3, Object value3) {
+        if (id != null) {
+            log(append(append(append(begin(step), key1, value1), key2, value2), key3, value3));
+        }
+    }
+
+    private StringBuilder begin(String step) {
+        return new StringBuilder(96).append("trace=").append(id).append(" service=").append(serviceName)
+            .append(" step=").append(step).append(" elapsedMs=").append((System.nanoTime() - startTime) / 1000L / 1000.0);
+    }
+
+    private static StringBuilder append(StringBuilder line, String key, Object value) {
+        return line.append(' ').append(key).append('=').append(value);
+    }
+
+    private static StringBuilder append(StringBuilder line, String key, long value) {
+        return line.append(' ').append(key).append('=').append(value);
+    }
+
+    private void log(StringBuilder line) {
+        Debug.logInfo(line.toString(), module);
+    }
+}
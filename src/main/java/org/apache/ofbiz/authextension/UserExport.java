@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * Keyset paginated export of the getUserInfo projection
+ *
+ * Users are returned in userLoginId order, a page starting after the <code>cursor</code> of the
+ * previous one. A full export reads the AuthExtUserProfile rows of a page through one forward-only
+ * EntityListIterator and builds each user as soon as its rows are complete, so memory is bounded by the
+ * page size whatever the number of users. With <code>changedSince</code>, the userLoginIds having a
+ * UserLogin, Person, primary email or employment row updated after that time are read first and their
+ * projection loaded in chunks. Deletions leave no stamp and are not reported as changes.
+ *
+ * {@link #export} streams the same users without pages: one query and one iterator cover the whole
+ * export, instead of one ordered query per page each skipping the users of the pages before.
+ */
+public final class UserExport {
+
+    private static final String MODULE = UserExport.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    /** Users per page when the caller does not ask for a size */
+    public static final int DEFAULT_PAGE_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "export.pageSize", 1000);
+    /** Largest page a caller may ask for */
+    public static final int MAX_PAGE_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "export.maxPageSize", 5000);
+
+    private static final int FETCH_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "export.fetchSize", 500);
+    private static final int CHUNK_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "userinfo.batch.chunkSize", 1000);
+    /** Transaction timeout in seconds of a streamed export, which holds its iterator open until the last user */
+    private static final int STREAM_TIMEOUT = UtilProperties.getPropertyAsInteger(RESOURCE, "export.stream.transactionTimeout", 3600);
+    /** Recorded as a stage rather than a query step, a whole export would skew the query latency of the health check */
+    private static final AuthExtensionMetrics.Timer STREAM = AuthExtensionMetrics.stage("export.stream");
+
+    /** AuthExtUserProfile fields holding the lastUpdatedStamp of each member */
+    private static final List<String> STAMP_FIELDS = UtilMisc.toList("userLoginStamp", "personStamp", "emailPurposeStamp",
+            "emailStamp", "employmentStamp", "organizationStamp");
+
+    private UserExport() { }
+
+    /**
+     * Users of one page and the cursor to pass for the next page
+     */
+    public static final class Page {
+        private final List<UserInfoCache.Entry> entries;
+        private final String nextCursor;
+        private final boolean hasMore;
+
+        private Page(List<UserInfoCache.Entry> entries, String nextCursor, boolean hasMore) {
+            this.entries = entries;
+            this.nextCursor = nextCursor;
+            this.hasMore = hasMore;
+        }
+
+        public List<UserInfoCache.Entry> getEntries() {
+            return entries;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    public static int toPageSize(Integer requested) {
+        if (requested == null || requested <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(requested, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Read the users following <code>cursor</code> (all users when null), restricted to those changed after
+     * <code>changedSince</code> when it is not null
+     */
+    public static Page exportPage(Delegator delegator, String cursor, Timestamp changedSince, int pageSize) throws GenericEntityException {
+        List<EntityCondition> conditions = conditions(cursor, changedSince);
+        List<UserInfoCache.Entry> entries = new ArrayList<>(pageSize);
+        boolean hasMore = AuthExtensionMetrics.timeQuery(UserProfileQuery.VIEW_ENTITY + (changedSince == null ? ".export" : ".exportChanged"),
+                () -> changedSince == null ? scan(delegator, conditions, pageSize, entries::add, 0)
+                        : changed(delegator, conditions, pageSize, entries::add, 0));
+        String nextCursor = entries.isEmpty() ? cursor : entries.get(entries.size() - 1).getUserLoginId();
+        return new Page(entries, nextCursor, hasMore);
+    }
+
+    /**
+     * Hand the users following <code>cursor</code>, restricted to those changed after <code>changedSince</code>
+     * when it is not null, to <code>sink</code> in userLoginId order, at most <code>limit</code> of them when it is
+     * positive. A full export builds each user as its rows arrive; a changed export holds the changed userLoginIds
+     * and the projections of one chunk. Returns true when more users follow the last one handed over.
+     */
+    public static boolean export(Delegator delegator, String cursor, Timestamp changedSince, long limit,
+            Consumer<UserInfoCache.Entry> sink) throws GenericEntityException {
+        List<EntityCondition> conditions = conditions(cursor, changedSince);
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean hasMore = changedSince == null ? scan(delegator, conditions, limit, sink, STREAM_TIMEOUT)
+                    : changed(delegator, conditions, limit, sink, STREAM_TIMEOUT);
+            failed = false;
+            return hasMore;
+        } finally {
+            STREAM.record(System.nanoTime() - startTime, failed);
+        }
+    }
+
+    private static List<EntityCondition> conditions(String cursor, Timestamp changedSince) {
+        List<EntityCondition> conditions = new ArrayList<>();
+        if (cursor != null) {
+            conditions.add(EntityCondition.makeCondition("userLoginId", EntityOperator.GREATER_THAN, cursor));
+        }
+        if (changedSince != null) {
+            List<EntityCondition> changed = new ArrayList<>();
+            for (String stampField : STAMP_FIELDS) {
+                changed.add(EntityCondition.makeCondition(stampField, EntityOperator.GREATER_THAN, changedSince));
+            }
+            conditions.add(EntityCondition.makeCondition(changed, EntityOperator.OR));
+        }
+        return conditions;
+    }
+
+    /**
+     * Build the users of the rows matching <code>conditions</code>, at most <code>limit</code> when positive, and
+     * return true when more follow. A zero <code>timeout</code> keeps the default transaction timeout.
+     */
+    private static boolean scan(Delegator delegator, List<EntityCondition> conditions, long limit,
+            Consumer<UserInfoCache.Entry> sink, int timeout) throws GenericEntityException {
+        Timestamp now = UtilDateTime.nowTimestamp();
+        long count = 0;
+        boolean hasMore = false;
+        boolean beganTransaction = timeout > 0 ? TransactionUtil.begin(timeout) : TransactionUtil.begin();
+        try {
+            try (EntityListIterator rows = EntityQuery.use(delegator)
+                    .select(UserProfileQuery.PROFILE_FIELDS)
+                    .from(UserProfileQuery.VIEW_ENTITY)
+                    .where(conditions)
+                    .orderBy("userLoginId")
+                    .fetchSize(FETCH_SIZE)
+                    .cursorForwardOnly()
+                    .queryIterator()) {
+                List<GenericValue> userRows = new ArrayList<>();
+                GenericValue row;
+                while ((row = rows.next()) != null) {
+                    if (!userRows.isEmpty() && !row.getString("userLoginId").equals(userRows.get(0).getString("userLoginId"))) {
+                        if (limit > 0 && count >= limit) {
+                            // The row just read belongs to a user past the limit
+                            hasMore = true;
+                            break;
+                        }
+                        sink.accept(UserProfileQuery.toEntry(delegator, userRows, now));
+                        count++;
+                        userRows = new ArrayList<>();
+                    }
+                    userRows.add(row);
+                }
+                if (!hasMore && !userRows.isEmpty()) {
+                    if (limit > 0 && count >= limit) {
+                        hasMore = true;
+                    } else {
+                        sink.accept(UserProfileQuery.toEntry(delegator, userRows, now));
+                    }
+                }
+            }
+            TransactionUtil.commit(beganTransaction);
+        } catch (GenericEntityException e) {
+            rollback(beganTransaction, e);
+            throw e;
+        }
+        return hasMore;
+    }
+
+    private static boolean changed(Delegator delegator, List<EntityCondition> conditions, long limit,
+            Consumer<UserInfoCache.Entry> sink, int timeout) throws GenericEntityException {
+        List<String> userLoginIds = new ArrayList<>();
+        boolean beganTransaction = timeout > 0 ? TransactionUtil.begin(timeout) : TransactionUtil.begin();
+        try {
+            EntityQuery query = EntityQuery.use(delegator)
+                    .select("userLoginId")
+                    .from(UserProfileQuery.VIEW_ENTITY)
+                    .where(conditions)
+                    .orderBy("userLoginId")
+                    .distinct()
+                    .fetchSize(FETCH_SIZE)
+                    .cursorForwardOnly();
+            if (limit > 0) {
+                query.maxRows((int) Math.min(limit + 1, Integer.MAX_VALUE));
+            }
+            try (EntityListIterator rows = query.queryIterator()) {
+                GenericValue row;
+                while ((limit <= 0 || userLoginIds.size() <= limit) && (row = rows.next()) != null) {
+                    userLoginIds.add(row.getString("userLoginId"));
+                }
+            }
+            TransactionUtil.commit(beganTransaction);
+        } catch (GenericEntityException e) {
+            rollback(beganTransaction, e);
+            throw e;
+        }
+        boolean hasMore = limit > 0 && userLoginIds.size() > limit;
+        if (hasMore) {
+            userLoginIds.remove(userLoginIds.size() - 1);
+        }
+
+        for (int start = 0; start < userLoginIds.size(); start += CHUNK_SIZE) {
+            List<UserInfoCache.Entry> entries = new ArrayList<>(UserProfileQuery.findAll(delegator,
+                    userLoginIds.subList(start, Math.min(start + CHUNK_SIZE, userLoginIds.size()))));
+            entries.sort(Comparator.comparing(UserInfoCache.Entry::getUserLoginId));
+            entries.forEach(sink);
+        }
+        return hasMore;
+    }
+
+    private static void rollback(boolean beganTransaction, GenericEntityException e) {
+        try {
+            TransactionUtil.rollback(beganTransaction, "Error exporting users", e);
+        } catch (GenericTransactionException e2) {
+            Debug.logError(e2, "Could not rollback user export transaction", MODULE);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+
+/**
+ * Cache of the user profile projection assembled by getUserInfo
+ *
+ * Entries are keyed by delegator name and userLoginId, so each tenant gets its
+ * own entries. The clearUserInfoCache service removes them; it is triggered by
+ * the entity ECAs in entitydef/eecas.xml whenever one of the entities the
+ * projection is read from changes. The ECAs run before the change is committed,
+ * so the entries are removed again once the transaction completes, and a load
+ * is only cached if none of the rows it was built from was invalidated since
+ * it started.
+ */
+public final class UserInfoCache {
+
+    private static final String MODULE = UserInfoCache.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    private static final boolean ENABLED = UtilProperties.getPropertyAsBoolean(RESOURCE, "userinfo.cache.enabled", true);
+    private static final UtilCache<String, Entry> CACHE = UtilCache.getOrCreateUtilCache("auth.extension.userInfo", 0,
+            UtilProperties.getPropertyAsInteger(RESOURCE, "userinfo.cache.maxSize", 10000),
+            UtilProperties.getPropertyAsLong(RESOURCE, "userinfo.cache.expireTime", 300000L), false);
+
+    private static final int MAX_INVALIDATIONS = UtilProperties.getPropertyAsInteger(RESOURCE, "userinfo.cache.maxSize", 10000);
+
+    /** Bumped on every invalidation, loads read it before going to the database */
+    private static final AtomicLong GENERATION = new AtomicLong();
+    /** Generation of the last invalidation of each UserLogin, party and contact mech, see {@link #put(Entry, long)} */
+    private static final Map<String, Long> INVALIDATIONS = new ConcurrentHashMap<>();
+    /** Loads started before this generation are not cached, as their invalidations may have been dropped */
+    private static volatile long invalidationsFloor;
+    private static final AtomicLong INSERT_COUNT = new AtomicLong();
+    private static final AtomicLong INVALIDATION_COUNT = new AtomicLong();
+
+    private UserInfoCache() { }
+
+    /**
+     * Cached projection of one user, together with the ids of the rows it was built from
+     */
+    public static final class Entry {
+        private final String delegatorName;
+        private final String userLoginId;
+        private final String partyId;
+        private final String contactMechId;
+        private final String organizationPartyId;
+        private final String version;
+        private final Map<String, Object> userInfo;
+
+        public Entry(String delegatorName, String userLoginId, String partyId, String contactMechId,
+                String organizationPartyId, String version, Map<String, Object> userInfo) {
+            this.delegatorName = delegatorName;
+            this.userLoginId = userLoginId;
+            this.partyId = partyId;
+            this.contactMechId = contactMechId;
+            this.organizationPartyId = organizationPartyId;
+            this.version = version;
+            this.userInfo = Collections.unmodifiableMap(new HashMap<>(userInfo));
+        }
+
+        public String getUserLoginId() {
+            return userLoginId;
+        }
+
+        public String getPartyId() {
+            return partyId;
+        }
+
+        public String getContactMechId() {
+            return contactMechId;
+        }
+
+        public String getOrganizationPartyId() {
+            return organizationPartyId;
+        }
+
+        /** Version tag of the rows the projection was built from, see {@link VersionTag} */
+        public String getVersion() {
+            return version;
+        }
+
+        /** Returns a mutable copy of the cached userInfo map */
+        public Map<String, Object> getUserInfo() {
+            return new HashMap<>(userInfo);
+        }
+
+        /** Returns the cached userInfo map itself, which is read-only */
+        public Map<String, Object> getUserInfoView() {
+            return userInfo;
+        }
+
+        private boolean dependsOn(String userLoginId, String partyId, String contactMechId) {
+            return (userLoginId != null && userLoginId.equals(this.userLoginId))
+                    || (partyId != null && (partyId.equals(this.partyId) || partyId.equals(this.organizationPartyId)))
+                    || (contactMechId != null && contactMechId.equals(this.contactMechId));
+        }
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Returns the current invalidation generation, to be read before loading an entry from the database
+     * and handed back to {@link #put(Entry, long)}.
+     */
+    public static long generation() {
+        return GENERATION.get();
+    }
+
+    public static Entry get(Delegator delegator, String userLoginId) {
+        if (!ENABLED) {
+            return null;
+        }
+        return CACHE.get(key(delegator.getDelegatorName(), userLoginId));
+    }
+
+    /**
+     * Caches the entry unless one of the rows it was built from was invalidated since <code>generation</code>
+     * was read, in which case the entry may already be stale and is dropped.
+     */
+    public static void put(Entry entry, long generation) {
+        if (!ENABLED || generation < invalidationsFloor
+                || invalidatedSince(generation, entry.delegatorName, "user", entry.userLoginId)
+                || invalidatedSince(generation, entry.delegatorName, "party", entry.partyId)
+                || invalidatedSince(generation, entry.delegatorName, "party", entry.organizationPartyId)
+                || invalidatedSince(generation, entry.delegatorName, "contactMech", entry.contactMechId)) {
+            return;
+        }
+        if (CACHE.put(key(entry.delegatorName, entry.userLoginId), entry) == null) {
+            INSERT_COUNT.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all entries of the given delegator that were built from the given UserLogin, party
+     * (as person or as employer) or contact mech. Null arguments are ignored.
+     */
+    public static int invalidate(String delegatorName, String userLoginId, String partyId, String contactMechId) {
+        if (!ENABLED || (userLoginId == null && partyId == null && contactMechId == null)) {
+            return 0;
+        }
+        long generation = GENERATION.incrementAndGet();
+        if (INVALIDATIONS.size() >= MAX_INVALIDATIONS) {
+            // Loads in flight when the map is cleared can't be checked any more and are not cached
+            invalidationsFloor = generation;
+            INVALIDATIONS.clear();
+        }
+        markInvalidated(generation, delegatorName, "user", userLoginId);
+        markInvalidated(generation, delegatorName, "party", partyId);
+        markInvalidated(generation, delegatorName, "contactMech", contactMechId);
+        List<String> keys = new ArrayList<>();
+        for (Entry entry : CACHE.values()) {
+            if (entry.delegatorName.equals(delegatorName) && entry.dependsOn(userLoginId, partyId, contactMechId)) {
+                keys.add(key(entry.delegatorName, entry.userLoginId));
+            }
+        }
+        for (String key : keys) {
+            CACHE.remove(key);
+        }
+        INVALIDATION_COUNT.addAndGet(keys.size());
+        if (Debug.verboseOn() && !keys.isEmpty()) {
+            Debug.logVerbose("Invalidated " + keys.size() + " cached user info entries in " + delegatorName, MODULE);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Like {@link #invalidate(String, String, String, String)}, and again once the current transaction
+     * completes, so that entries loaded from the rows before the change was committed are removed as well.
+     */
+    public static int invalidateOnCommit(String delegatorName, String userLoginId, String partyId, String contactMechId) {
+        int removed = invalidate(delegatorName, userLoginId, partyId, contactMechId);
+        if (!ENABLED) {
+            return removed;
+        }
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                TransactionUtil.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() { }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        invalidate(delegatorName, userLoginId, partyId, contactMechId);
+                    }
+                });
+            }
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, "Could not invalidate the cached user info after commit, entries loaded before the commit"
+                    + " stay cached until they expire", MODULE);
+        }
+        return removed;
+    }
+
+    public static void clear() {
+        invalidationsFloor = GENERATION.incrementAndGet();
+        INVALIDATIONS.clear();
+        CACHE.clear();
+    }
+
+    /**
+     * Returns the cache counters. <code>evictionCount</code> is derived as the entries inserted that are
+     * neither live nor explicitly removed, i.e. those dropped by the size limit or the expire time.
+     */
+    public static Map<String, Object> getStats() {
+        long size = CACHE.size();
+        long inserts = INSERT_COUNT.get();
+        long removals = CACHE.getRemoveHitCount();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", ENABLED);
+        stats.put("size", size);
+        stats.put("maxSize", CACHE.getMaxInMemory());
+        stats.put("expireTime", CACHE.getExpireTime());
+        stats.put("hitCount", CACHE.getHitCount());
+        stats.put("missCount", CACHE.getMissCountTotal());
+        stats.put("expiredCount", CACHE.getMissCountExpired());
+        stats.put("insertCount", inserts);
+        stats.put("invalidationCount", INVALIDATION_COUNT.get());
+        stats.put("evictionCount", Math.max(0L, inserts - size - removals));
+        return stats;
+    }
+
+    private static void markInvalidated(long generation, String delegatorName, String kind, String id) {
+        if (id != null) {
+            INVALIDATIONS.merge(delegatorName + "::" + kind + "::" + id, generation, Math::max);
+        }
+    }
+
+    private static boolean invalidatedSince(long generation, String delegatorName, String kind, String id) {
+        if (id == null) {
+            return false;
+        }
+        Long invalidated = INVALIDATIONS.get(delegatorName + "::" + kind + "::" + id);
+        return invalidated != null && invalidated > generation;
+    }
+
+    private static String key(String delegatorName, String userLoginId) {
+        return delegatorName + "::" + userLoginId;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
+
+/**
+ * Loads the getUserInfo projection through the AuthExtUserProfile view entity
+ *
+ * A single statement returns the login, person, primary email and employer of a user.
+ * The view yields one row per primary email / employment combination; the first row
+ * with an active PartyContactMechPurpose provides the email and the first row with an
+ * active PartyRelationship provides the organization.
+ */
+public final class UserProfileQuery {
+
+    public static final String VIEW_ENTITY = "AuthExtUserProfile";
+
+    /** View fields making up the projection, the UserLogin credential fields are left out */
+    static final Set<String> PROFILE_FIELDS = UtilMisc.toSet("userLoginId", "partyId", "enabled", "hasLoggedOut",
+            "personPartyId", "firstName", "lastName", "contactMechId", "emailFromDate", "emailThruDate", "emailContactMechId",
+            "email", "organizationPartyId", "employmentFromDate", "employmentThruDate", "groupPartyId", "organizationName",
+            "userLoginStamp", "personStamp", "emailPurposeStamp", "emailStamp", "employmentStamp", "organizationStamp");
+
+    private UserProfileQuery() { }
+
+    /**
+     * Load the projection of one user, returns null if the UserLogin does not exist
+     */
+    public static UserInfoCache.Entry findOne(Delegator delegator, String userLoginId) throws GenericEntityException {
+        List<GenericValue> rows = AuthExtensionMetrics.timeQuery(VIEW_ENTITY, () -> EntityQuery.use(delegator)
+            .select(PROFILE_FIELDS)
+            .from(VIEW_ENTITY)
+            .where("userLoginId", userLoginId)
+            .queryList());
+        if (UtilValidate.isEmpty(rows)) {
+            return null;
+        }
+        return toEntry(delegator, rows, UtilDateTime.nowTimestamp());
+    }
+
+    /**
+     * Load the view rows of one user including the UserLogin credential fields, so that a login can be
+     * verified and the projection built from a single statement. Returns an empty list if the UserLogin
+     * does not exist.
+     */
+    public static List<GenericValue> findLoginRows(Delegator delegator, String userLoginId) throws GenericEntityException {
+        return AuthExtensionMetrics.timeQuery(VIEW_ENTITY + ".login", () -> EntityQuery.use(delegator)
+            .from(VIEW_ENTITY)
+            .where("userLoginId", userLoginId)
+            .queryList());
+    }
+
+    /**
+     * Load the projection of several users in one statement, users without a UserLogin are left out
+     */
+    public static List<UserInfoCache.Entry> findAll(Delegator delegator, Collection<String> userLoginIds) throws GenericEntityException {
+        List<GenericValue> rows = AuthExtensionMetrics.timeQuery(VIEW_ENTITY + ".batch", () -> EntityQuery.use(delegator)
+            .select(PROFILE_FIELDS)
+            .from(VIEW_ENTITY)
+            .where(EntityCondition.makeCondition("userLoginId", EntityOperator.IN, userLoginIds))
+            .queryList());
+        Map<String, List<GenericValue>> rowsByUser = new LinkedHashMap<>();
+        for (GenericValue row : rows) {
+            rowsByUser.computeIfAbsent(row.getString("userLoginId"), k -> new ArrayList<>()).add(row);
+        }
+        Timestamp now = UtilDateTime.nowTimestamp();
+        List<UserInfoCache.Entry> entries = new ArrayList<>(rowsByUser.size());
+        for (List<GenericValue> userRows : rowsByUser.values()) {
+            entries.add(toEntry(delegator, userRows, now));
+        }
+        return entries;
+    }
+
+    /**
+     * Build the projection from the view rows of a single user
+     */
+    public static UserInfoCache.Entry toEntry(Delegator delegator, List<GenericValue> rows, Timestamp now) {
+        GenericValue first = rows.get(0);
+        String delegatorName = delegator.getDelegatorName();
+        String userLoginId = first.getString("userLoginId");
+        String partyId = first.getString("partyId");
+
+        Map<String, Object> userInfo = new HashMap<>();
+        userInfo.put("userLoginId", userLoginId);
+        userInfo.put("partyId", partyId);
+        userInfo.put("tenantId", AuthExtensionServices.extractTenantFromDelegatorName(delegatorName));
+        userInfo.put("enabled", "Y".equals(first.getString("enabled")));
+        userInfo.put("hasLoggedOut", "Y".equals(first.getString("hasLoggedOut")));
+        if (first.get("personPartyId") != null) {
+            userInfo.put("firstName", first.getString("firstName"));
+            userInfo.put("lastName", first.getString("lastName"));
+        }
+
+        String contactMechId = null;
+        String organizationPartyId = null;
+        GenericValue emailRow = null;
+        GenericValue employmentRow = null;
+        for (GenericValue row : rows) {
+            if (contactMechId == null && row.get("contactMechId") != null
+                    && EntityUtil.isValueActive(row, now, "emailFromDate", "emailThruDate")) {
+                contactMechId = row.getString("contactMechId");
+                emailRow = row;
+                if (row.get("emailContactMechId") != null) {
+                    userInfo.put("email", row.getString("email"));
+                }
+            }
+            if (organizationPartyId == null && row.get("organizationPartyId") != null
+                    && EntityUtil.isValueActive(row, now, "employmentFromDate", "employmentThruDate")) {
+                organizationPartyId = row.getString("organizationPartyId");
+                employmentRow = row;
+                userInfo.put("organizationPartyId", organizationPartyId);
+                if (row.get("groupPartyId") != null) {
+                    userInfo.put("organizationName", row.getString("organizationName"));
+                }
+            }
+        }
+
+        // Version of the rows making up the projection, the selected email and employment rows are identified by key
+        VersionTag version = new VersionTag()
+            .add(first.getTimestamp("userLoginStamp"))
+            .add(first.getTimestamp("personStamp"))
+            .add(contactMechId);
+        if (emailRow != null) {
+            version.add(emailRow.getTimestamp("emailFromDate"))
+                .add(emailRow.getTimestamp("emailPurposeStamp"))
+                .add(emailRow.getTimestamp("emailStamp"));
+        }
+        version.add(organizationPartyId);
+        if (employmentRow != null) {
+            version.add(employmentRow.getTimestamp("employmentFromDate"))
+                .add(employmentRow.getTimestamp("employmentStamp"))
+                .add(employmentRow.getTimestamp("organizationStamp"));
+        }
+        return new UserInfoCache.Entry(delegatorName, userLoginId, partyId, contactMechId, organizationPartyId,
+                version.toString(), userInfo);
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * In-memory index answering user searches by userLoginId, email, first and last name
+ *
+ * Each delegator (so each tenant) gets its own partition, built from the getUserInfo projection by a full
+ * scan that its first search starts in the background; searches are refused until the build is done. A partition keeps one sorted set of terms, a term being a field code, the lower
+ * case field value and the userLoginId, so that a prefix or exact query is a range of the set. Results come
+ * in the order of the userLoginId terms, lower case userLoginId then userLoginId, so a userLoginId search
+ * stops at the first MAX_MATCHES terms; a search on the other fields switches to reading the userLoginId
+ * terms in order once it has more than MAX_MATCHES matches. The entity ECAs mark the changed userLoginIds,
+ * parties and contact mechs dirty through clearUserInfoCache, and the background thread reloads those users
+ * every <code>search.index.refreshDelay</code> milliseconds while marks remain. Marks stay dirty for
+ * <code>search.index.settleTime</code> milliseconds, because the ECAs run before the change is committed.
+ */
+public final class UserSearchIndex {
+
+    private static final String MODULE = UserSearchIndex.class.getName();
+    private static final String RESOURCE = "authextension";
+
+    private static final boolean ENABLED = UtilProperties.getPropertyAsBoolean(RESOURCE, "search.index.enabled", true);
+    private static final long SETTLE_TIME = UtilProperties.getPropertyAsLong(RESOURCE, "search.index.settleTime", 5000L);
+    private static final long REFRESH_DELAY = UtilProperties.getPropertyAsLong(RESOURCE, "search.index.refreshDelay", 500L);
+    /** Matches collected per search, further matches are left out of listSize and of the pages */
+    private static final int MAX_MATCHES = UtilProperties.getPropertyAsInteger(RESOURCE, "search.index.maxMatches", 10000);
+    private static final int DEFAULT_VIEW_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "search.viewSize", 20);
+    private static final int MAX_VIEW_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "search.maxViewSize", 500);
+    private static final int CHUNK_SIZE = UtilProperties.getPropertyAsInteger(RESOURCE, "userinfo.batch.chunkSize", 1000);
+
+    /** Code prefixed to the terms of each searchable field */
+    private static final Map<String, Character> FIELDS = UtilMisc.toMap("userLoginId", 'u', "email", 'e',
+            "firstName", 'f', "lastName", 'l');
+    private static final char SEPARATOR = '\u0000';
+
+    private static final Map<String, Partition> PARTITIONS = new ConcurrentHashMap<>();
+    /**
+     * Builds the partitions one at a time, so that concurrent first searches of tenants do not pile up full scans,
+     * and reloads the changed users
+     */
+    private static final ScheduledExecutorService BUILDER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "auth-extension-search-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private UserSearchIndex() { }
+
+    /**
+     * One page of search results
+     */
+    public static final class Result {
+        private final List<Map<String, Object>> users;
+        private final int listSize;
+        private final boolean truncated;
+        private final int viewIndex;
+        private final int viewSize;
+
+        private Result(List<Map<String, Object>> users, int listSize, boolean truncated, int viewIndex, int viewSize) {
+            this.users = users;
+            this.listSize = listSize;
+            this.truncated = truncated;
+            this.viewIndex = viewIndex;
+            this.viewSize = viewSize;
+        }
+
+        public List<Map<String, Object>> getUsers() {
+            return users;
+        }
+
+        /** Number of matches, at most <code>search.index.maxMatches</code> */
+        public int getListSize() {
+            return listSize;
+        }
+
+        /** More than <code>search.index.maxMatches</code> users matched, the ones after them in result order were left out */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public int getViewIndex() {
+            return viewIndex;
+        }
+
+        public int getViewSize() {
+            return viewSize;
+        }
+    }
+
+    /**
+     * Searchable fields of one user
+     */
+    private static final class Doc {
+        private final String userLoginId;
+        private final String partyId;
+        private final String email;
+        private final String firstName;
+        private final String lastName;
+        private final boolean enabled;
+
+        private Doc(Map<String, Object> userInfo) {
+            this.userLoginId = (String) userInfo.get("userLoginId");
+            this.partyId = (String) userInfo.get("partyId");
+            this.email = (String) userInfo.get("email");
+            this.firstName = (String) userInfo.get("firstName");
+            this.lastName = (String) userInfo.get("lastName");
+            this.enabled = Boolean.TRUE.equals(userInfo.get("enabled"));
+        }
+
+        private boolean matches(String field, String search, boolean exact) {
+            String value = get(field);
+            if (value == null) {
+                return false;
+            }
+            String normalized = normalize(value);
+            return exact ? normalized.equals(search) : normalized.startsWith(search);
+        }
+
+        private String get(String field) {
+            switch (field) {
+            case "userLoginId":
+                return userLoginId;
+            case "email":
+                return email;
+            case "firstName":
+                return firstName;
+            default:
+                return lastName;
+            }
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> user = new LinkedHashMap<>();
+            user.put("userLoginId", userLoginId);
+            user.put("partyId", partyId);
+            user.put("enabled", enabled);
+            if (firstName != null) {
+                user.put("firstName", firstName);
+            }
+            if (lastName != null) {
+                user.put("lastName", lastName);
+            }
+            if (email != null) {
+                user.put("email", email);
+            }
+            return user;
+        }
+    }
+
+    /**
+     * Index of the users of one delegator. Searches read it without locking, builds and reloads run on the
+     * builder thread.
+     */
+    private static final class Partition {
+        private final Delegator delegator;
+        private final Map<String, Doc> docs = new ConcurrentHashMap<>();
+        private final NavigableSet<String> terms = new ConcurrentSkipListSet<>();
+        /** Dirty marks by id, with the time they were last marked */
+        private final Map<String, Long> dirtyUsers = new ConcurrentHashMap<>();
+        private final Map<String, Long> dirtyParties = new ConcurrentHashMap<>();
+        private final Map<String, Long> dirtyContactMechs = new ConcurrentHashMap<>();
+        private volatile boolean built;
+        private final AtomicBoolean building = new AtomicBoolean();
+        private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+        private Partition(Delegator delegator) {
+            this.delegator = delegator;
+        }
+
+        /**
+         * Start the build on the builder thread unless it is already running. A failed build is logged and
+         * started again by the next search.
+         */
+        private void startBuild() {
+            if (!building.compareAndSet(false, true)) {
+                return;
+            }
+            BUILDER.execute(() -> {
+                try {
+                    build();
+                } catch (GenericEntityException | RuntimeException e) {
+                    Debug.logError(e, "Could not build the user search index of " + delegator.getDelegatorName(), MODULE);
+                } finally {
+                    building.set(false);
+                }
+            });
+        }
+
+        private synchronized void build() throws GenericEntityException {
+            if (built) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            UserExport.export(delegator, null, null, 0L, this::put);
+            built = true;
+            Debug.logInfo("User search index of " + delegator.getDelegatorName() + " built with " + docs.size() + " users in "
+                    + (System.currentTimeMillis() - start) + " ms", MODULE);
+        }
+
+        private boolean isDirty() {
+            return !dirtyUsers.isEmpty() || !dirtyParties.isEmpty() || !dirtyContactMechs.isEmpty();
+        }
+
+        /**
+         * Reload the dirty users on the builder thread in <code>REFRESH_DELAY</code> milliseconds, unless a reload
+         * is already scheduled. Reloads go on while marks remain, a failed one is logged and retried.
+         */
+        private void scheduleRefresh() {
+            if (!refreshScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            BUILDER.schedule(() -> {
+                refreshScheduled.set(false);
+                try {
+                    refresh();
+                } catch (GenericEntityException | RuntimeException e) {
+                    Debug.logError(e, "Could not reload the changed users of the search index of " + delegator.getDelegatorName(), MODULE);
+                }
+                if (isDirty()) {
+                    scheduleRefresh();
+                }
+            }, REFRESH_DELAY, TimeUnit.MILLISECONDS);
+        }
+
+        private void refresh() throws GenericEntityException {
+            if (!isDirty()) {
+                return;
+            }
+            synchronized (this) {
+                long settled = System.currentTimeMillis() - SETTLE_TIME;
+                Map<String, Long> users = new LinkedHashMap<>(dirtyUsers);
+                Map<String, Long> parties = new LinkedHashMap<>(dirtyParties);
+                Map<String, Long> contactMechs = new LinkedHashMap<>(dirtyContactMechs);
+
+                Set<String> userLoginIds = new HashSet<>(users.keySet());
+                userLoginIds.addAll(findUserLoginIds(delegator, "partyId", parties.keySet()));
+                userLoginIds.addAll(findUserLoginIds(delegator, "contactMechId", contactMechs.keySet()));
+                List<String> toLoad = new ArrayList<>(userLoginIds);
+                for (int start = 0; start < toLoad.size(); start += CHUNK_SIZE) {
+                    List<String> chunk = toLoad.subList(start, Math.min(start + CHUNK_SIZE, toLoad.size()));
+                    Set<String> missing = new HashSet<>(chunk);
+                    for (UserInfoCache.Entry entry : UserProfileQuery.findAll(delegator, chunk)) {
+                        put(entry);
+                        missing.remove(entry.getUserLoginId());
+                    }
+                    // Users whose UserLogin was removed
+                    for (String userLoginId : missing) {
+                        remove(userLoginId);
+                    }
+                }
+
+                // Marks older than the settle time are committed by now, unless they were marked again meanwhile
+                clearSettled(dirtyUsers, users, settled);
+                clearSettled(dirtyParties, parties, settled);
+                clearSettled(dirtyContactMechs, contactMechs, settled);
+            }
+        }
+
+        private void put(UserInfoCache.Entry entry) {
+            remove(entry.getUserLoginId());
+            Doc doc = new Doc(entry.getUserInfoView());
+            for (Map.Entry<String, Character> field : FIELDS.entrySet()) {
+                String value = doc.get(field.getKey());
+                if (value != null) {
+                    terms.add(term(field.getValue(), normalize(value), doc.userLoginId));
+                }
+            }
+            docs.put(doc.userLoginId, doc);
+        }
+
+        private void remove(String userLoginId) {
+            Doc doc = docs.remove(userLoginId);
+            if (doc != null) {
+                for (Map.Entry<String, Character> field : FIELDS.entrySet()) {
+                    String value = doc.get(field.getKey());
+                    if (value != null) {
+                        terms.remove(term(field.getValue(), normalize(value), userLoginId));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Collect the sort keys of the first MAX_MATCHES users, in result order, matching <code>search</code> in
+         * the given fields into <code>matches</code>. Returns true when more users matched.
+         */
+        private boolean match(Collection<String> fields, String search, boolean exact, TreeSet<String> matches) {
+            if (fields.size() == 1 && fields.contains("userLoginId")) {
+                // The userLoginId terms are in result order, each user has one
+                for (String term : range(FIELDS.get("userLoginId"), search, exact)) {
+                    if (matches.size() >= MAX_MATCHES) {
+                        return true;
+                    }
+                    matches.add(term.substring(1));
+                }
+                return false;
+            }
+            for (String field : fields) {
+                for (String term : range(FIELDS.get(field), search, exact)) {
+                    matches.add(sortKey(term.substring(term.lastIndexOf(SEPARATOR) + 1)));
+                    if (matches.size() > MAX_MATCHES) {
+                        // Other terms come in value order, past MAX_MATCHES matches reading the users in result
+                        // order and stopping at the first ones is cheaper than reading every match
+                        matches.clear();
+                        return scan(fields, search, exact, matches);
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean scan(Collection<String> fields, String search, boolean exact, TreeSet<String> matches) {
+            for (String term : range(FIELDS.get("userLoginId"), "", false)) {
+                Doc doc = docs.get(term.substring(term.lastIndexOf(SEPARATOR) + 1));
+                if (doc == null) {
+                    continue;
+                }
+                for (String field : fields) {
+                    if (doc.matches(field, search, exact)) {
+                        if (matches.size() >= MAX_MATCHES) {
+                            return true;
+                        }
+                        matches.add(term.substring(1));
+                        break;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private NavigableSet<String> range(char code, String search, boolean exact) {
+            // An exact search ends with the separator, a prefix search takes any character after the prefix
+            String from = exact ? code + search + SEPARATOR : code + search;
+            String to = exact ? code + search + (char) (SEPARATOR + 1) : code + search + Character.MAX_VALUE;
+            return terms.subSet(from, true, to, false);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Search the users of <code>delegator</code> whose <code>field</code> starts with, or with <code>exact</code>
+     * equals, <code>search</code>, ignoring case. <code>field</code> is userLoginId, email, firstName, lastName
+     * or null for any of them. A trailing <code>*</code> is ignored and an empty search matches all users.
+     * Matches are returned in lower case userLoginId order, <code>viewSize</code> users from page <code>viewIndex</code>.
+     * Returns null while the partition of <code>delegator</code> is being built, the first search starting the build.
+     */
+    public static Result search(Delegator delegator, String search, String field, boolean exact, Integer viewIndex,
+            Integer viewSize) throws GenericEntityException {
+        Partition partition = PARTITIONS.computeIfAbsent(delegator.getDelegatorName(), k -> new Partition(delegator));
+        if (!partition.built) {
+            partition.startBuild();
+            return null;
+        }
+
+        String normalized = search != null ? normalize(search) : "";
+        while (normalized.endsWith("*")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (normalized.isEmpty()) {
+            // Every user has a userLoginId term
+            field = "userLoginId";
+            exact = false;
+        }
+        TreeSet<String> matches = new TreeSet<>();
+        boolean truncated = partition.match(field != null ? UtilMisc.toList(field) : FIELDS.keySet(), normalized, exact, matches);
+
+        int index = viewIndex != null && viewIndex > 0 ? viewIndex : 0;
+        int size = viewSize != null && viewSize > 0 ? Math.min(viewSize, MAX_VIEW_SIZE) : DEFAULT_VIEW_SIZE;
+        List<Map<String, Object>> users = new ArrayList<>(size);
+        long skip = (long) index * size;
+        for (String match : matches) {
+            if (skip-- > 0) {
+                continue;
+            }
+            if (users.size() >= size) {
+                break;
+            }
+            Doc doc = partition.docs.get(match.substring(match.lastIndexOf(SEPARATOR) + 1));
+            // Null when the user was reloaded or removed while the search ran
+            if (doc != null) {
+                users.add(doc.toMap());
+            }
+        }
+        return new Result(users, matches.size(), truncated, index, size);
+    }
+
+    public static boolean isSearchField(String field) {
+        return FIELDS.containsKey(field);
+    }
+
+    /**
+     * Mark the users built from the given UserLogin, party or contact mech for reload by the background thread. Null arguments are ignored; nothing is marked while the delegator has no partition yet, its
+     * build will read the change.
+     */
+    public static void markDirty(String delegatorName, String userLoginId, String partyId, String contactMechId) {
+        Partition partition = PARTITIONS.get(delegatorName);
+        if (partition == null) {
+            return;
+        }
+        Long now = System.currentTimeMillis();
+        if (userLoginId != null) {
+            partition.dirtyUsers.put(userLoginId, now);
+        }
+        if (partyId != null) {
+            partition.dirtyParties.put(partyId, now);
+        }
+        if (contactMechId != null) {
+            partition.dirtyContactMechs.put(contactMechId, now);
+        }
+        partition.scheduleRefresh();
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, Partition> partition : PARTITIONS.entrySet()) {
+            Partition index = partition.getValue();
+            Map<String, Object> partitionStats = new LinkedHashMap<>();
+            partitionStats.put("built", index.built);
+            partitionStats.put("building", index.building.get());
+            partitionStats.put("users", index.docs.size());
+            partitionStats.put("dirty", index.dirtyUsers.size() + index.dirtyParties.size() + index.dirtyContactMechs.size());
+            stats.put(partition.getKey(), partitionStats);
+        }
+        return stats;
+    }
+
+    private static List<String> findUserLoginIds(Delegator delegator, String field, Collection<String> values)
+            throws GenericEntityException {
+        List<String> userLoginIds = new ArrayList<>();
+        List<String> ids = new ArrayList<>(values);
+        for (int start = 0; start < ids.size(); start += CHUNK_SIZE) {
+            List<String> chunk = ids.subList(start, Math.min(start + CHUNK_SIZE, ids.size()));
+            List<GenericValue> rows = AuthExtensionMetrics.timeQuery(UserProfileQuery.VIEW_ENTITY + ".search", () -> EntityQuery.use(delegator)
+                .select("userLoginId")
+                .from(UserProfileQuery.VIEW_ENTITY)
+                .where(EntityCondition.makeCondition(field, EntityOperator.IN, chunk))
+                .distinct()
+                .queryList());
+            for (GenericValue row : rows) {
+                userLoginIds.add(row.getString("userLoginId"));
+            }
+        }
+        return userLoginIds;
+    }
+
+    private static void clearSettled(Map<String, Long> dirty, Map<String, Long> reloaded, long settled) {
+        for (Map.Entry<String, Long> mark : reloaded.entrySet()) {
+            if (mark.getValue() < settled) {
+                dirty.remove(mark.getKey(), mark.getValue());
+            }
+        }
+    }
+
+    private static String normalize(String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String term(char code, String value, String userLoginId) {
+        return code + value + SEPARATOR + userLoginId;
+    }
+
+    /** Sort key of a user in the results, its userLoginId term without the field code */
+    private static String sortKey(String userLoginId) {
+        return normalize(userLoginId) + SEPARATOR + userLoginId;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.authextension;
+
+import java.sql.Timestamp;
+
+/**
+ * Version tag of a profile projection
+ *
+ * A 64-bit FNV-1a hash over the <code>lastUpdatedStamp</code> and the primary key of each row the projection
+ * was built from, in a fixed order. Any change to one of those rows, or a different row being selected (for
+ * example when an email expires), gives a different tag. Callers pass the tag back as <code>ifNoneMatch</code>.
+ */
+public final class VersionTag {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private long hash = OFFSET_BASIS;
+
+    public VersionTag add(String value) {
+        if (value == null) {
+            return add(-1L);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            mix(value.charAt(i));
+        }
+        // Separator, so that "ab" + "c" and "a" + "bc" differ
+        mix(0xffff);
+        return this;
+    }
+
+    public VersionTag add(Timestamp stamp) {
+        return add(stamp != null ? stamp.getTime() : -1L);
+    }
+
+    public VersionTag add(long value) {
+        for (int shift = 0; shift < 64; shift += 16) {
+            mix((int) (value >>> shift) & 0xffff);
+        }
+        return this;
+    }
+
+    private void mix(int value) {
+        hash ^= value;
+        hash *= PRIME;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toHexString(hash);
+    }
+}
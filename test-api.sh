@@ -88,6 +88,34 @@ echo "6. Testing validateUserCredentials (no auth required)"
 CREDENTIALS='{"userLoginId":"'$USER_LOGIN_ID'","password":"'$PASSWORD'"}'
 make_request POST "/rest/auth-extension/services/validateUserCredentials" "$CREDENTIALS"
 
+echo "7. Testing a claims token issued right after a failed login"
+WRONG_CREDENTIALS='{"userLoginId":"'$USER_LOGIN_ID'","password":"wrong-'$PASSWORD'"}'
+make_request POST "/rest/auth-extension/services/validateUserCredentials" "$WRONG_CREDENTIALS"
+
+CLAIMS_RESPONSE=$(curl -s -X POST "$OFBIZ_URL/rest/auth-extension/services/validateUserCredentials" \
+    -H "Content-Type: application/json" \
+    -d '{"userLoginId":"'$USER_LOGIN_ID'","password":"'$PASSWORD'","issueClaimsToken":true}')
+CLAIMS_TOKEN=$(echo "$CLAIMS_RESPONSE" | jq -r '.data.claimsToken // .claimsToken // empty')
+
+if [ -z "$CLAIMS_TOKEN" ]; then
+    echo "Error: No claims token issued"
+    echo "Response: $CLAIMS_RESPONSE"
+    exit 1
+fi
+
+VERIFY_RESPONSE=$(curl -s -X POST "$OFBIZ_URL/rest/auth-extension/services/verifyClaimsToken" \
+    -H "Content-Type: application/json" \
+    -d '{"claimsToken":"'$CLAIMS_TOKEN'"}')
+echo "$VERIFY_RESPONSE" | jq .
+
+if [ "$(echo "$VERIFY_RESPONSE" | jq -r '.data.isValid // .isValid')" != "true" ]; then
+    echo "Error: Claims token issued after a failed login does not verify"
+    exit 1
+fi
+
+echo "✓ Claims token verified"
+echo
+
 echo "=== All tests completed ==="
 echo
 echo "If you see JSON responses above, the API is working correctly!"